@@ -0,0 +1,113 @@
+import jmh.Cases;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class ProtocolCases implements Cases {
+    //The benchmarked operations, where the protocol's classes can be named. See Cases.
+    private static final Map<String, String> LINES = new HashMap<>();
+    private static final String[] OPTIONS = {"A", "B", "C", "D"};
+    private static final int[] PORTS = {12346, 12347, 12348, 12349, 12350, 12351, 12352, 12353};
+
+    static {
+        LINES.put("JOIN", "JOIN 12345");
+        LINES.put("DETAILS", "DETAILS 12346 12347 12348 12349");
+        LINES.put("VOTE_OPTIONS", "VOTE_OPTIONS A B C D");
+        LINES.put("VOTE", "VOTE 12346 B");
+        LINES.put("MULTI_VOTE", "VOTE 12346 A 12347 B 12348 C 12349 D");
+        LINES.put("OUTCOME", "OUTCOME A 12345 12346 12347 12348");
+        LINES.put("OUTCOME_TIE", "OUTCOME null A B");
+    }
+
+    private static String line(String type){
+        String line = LINES.get(type);
+        if (line == null){
+            throw new IllegalArgumentException("Unknown token type " + type);
+        }
+        return line;
+    }
+
+    //A token that can be kept, not the parser's reused instance
+    private static Token token(String type){
+        return Tokeniser.parseInput(line(type)).detach();
+    }
+
+    @Override
+    public Call parseInput(String type){
+        String line = line(type);
+        return () -> Tokeniser.parseInput(line);
+    }
+
+    @Override
+    public Call parseInputBuffer(String type){
+        ByteBuffer bytes = ByteBuffer.wrap(line(type).getBytes(StandardCharsets.UTF_8));
+        return () -> Tokeniser.parseInput(bytes); //The parser reads the buffer without moving it
+    }
+
+    @Override
+    public Call tokenToString(String type){
+        Token token = token(type);
+        return token::toString;
+    }
+
+    @Override
+    public Call binaryEncode(String type){
+        Token token = token(type);
+        return () -> BinaryCodec.INSTANCE.encode(token);
+    }
+
+    @Override
+    public Call joinPorts(){
+        return () -> Tokeniser.joinList(PORTS);
+    }
+
+    @Override
+    public Call joinOptions(){
+        return () -> Tokeniser.joinList(OPTIONS);
+    }
+
+    @Override
+    public Call castMultiVoteElection(int voters){
+        return () -> {
+            Voting voting = new Voting();
+            voting.setOptions(OPTIONS);
+            for (int source = 0; source < 4; source++){
+                for (int voter = 0; voter < voters; voter++){
+                    voting.castMultiVote(20000 + source, 30000 + voter, voter % 3 == 0 ? 0 : 1);
+                }
+            }
+            return voting.getVoteCount();
+        };
+    }
+
+    @Override
+    public Call getWinningVotes(int voters){
+        Voting voting = new Voting();
+        voting.setOptions(OPTIONS);
+        for (int voter = 0; voter < voters; voter++){
+            voting.castVote(30000 + voter, voter % 3 == 0 ? "A" : "B");
+        }
+        return voting::getWinningVotes;
+    }
+
+    @Override
+    public Call getDetailsMapping(int participants){
+        List<Integer> ports = participantPorts(participants);
+        return () -> Coordinator.getDetailsMapping(ports);
+    }
+
+    @Override
+    public Call getTreeMapping(int participants){
+        List<Integer> ports = participantPorts(participants);
+        return () -> Coordinator.getTreeMapping(ports, 8, 12345);
+    }
+
+    private static List<Integer> participantPorts(int participants){
+        List<Integer> ports = new ArrayList<>();
+        for (int p = 0; p < participants; p++){
+            ports.add(12346 + p);
+        }
+        return ports;
+    }
+}
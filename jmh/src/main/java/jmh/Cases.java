@@ -0,0 +1,42 @@
+package jmh;
+
+public interface Cases {
+    //JMH won't take benchmarks in the default package, and a named package can't import the protocol's classes from it.
+    //So the benchmarks get their operations from ProtocolCases, the default package implementation loaded by name,
+    //as calls prepared in @Setup. Only the call itself is measured.
+
+    interface Call {
+        Object run();
+    }
+
+    //type is a token name or MULTI_VOTE or OUTCOME_TIE, ie. the line VOTE 12346 B for VOTE
+    Call parseInput(String type);
+
+    //Same line read from a ByteBuffer, as TextCodec does
+    Call parseInputBuffer(String type);
+
+    Call tokenToString(String type);
+
+    Call binaryEncode(String type);
+
+    Call joinPorts();
+
+    Call joinOptions();
+
+    //One call is a whole election : every one of the voters relayed by 4 peers, ie. voters * 4 castMultiVote
+    Call castMultiVoteElection(int voters);
+
+    Call getWinningVotes(int voters);
+
+    Call getDetailsMapping(int participants);
+
+    Call getTreeMapping(int participants);
+
+    static Cases load(){
+        try {
+            return (Cases) Class.forName("ProtocolCases").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ProtocolCases should be on the benchmark's classpath", e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//The DETAILS every participant gets, for a full mesh and for a tree of arity 8
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoordinatorBenchmark {
+    @Param({"10", "100", "1000"})
+    public int participants;
+
+    private Cases.Call getDetailsMapping;
+    private Cases.Call getTreeMapping;
+
+    @Setup
+    public void setup(){
+        Cases cases = Cases.load();
+        getDetailsMapping = cases.getDetailsMapping(participants);
+        getTreeMapping = cases.getTreeMapping(participants);
+    }
+
+    @Benchmark
+    public Object getDetailsMapping(){
+        return getDetailsMapping.run();
+    }
+
+    @Benchmark
+    public Object getTreeMapping(){
+        return getTreeMapping.run();
+    }
+}
@@ -0,0 +1,34 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//Tokeniser.joinList, behind the toString of DETAILS, VOTE_OPTIONS and OUTCOME : 8 ports, 4 options
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinListBenchmark {
+    private Cases.Call joinPorts;
+    private Cases.Call joinOptions;
+
+    @Setup
+    public void setup(){
+        Cases cases = Cases.load();
+        joinPorts = cases.joinPorts();
+        joinOptions = cases.joinOptions();
+    }
+
+    @Benchmark
+    public Object joinPorts(){
+        return joinPorts.run();
+    }
+
+    @Benchmark
+    public Object joinOptions(){
+        return joinOptions.run();
+    }
+}
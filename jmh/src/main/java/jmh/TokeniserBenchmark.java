@@ -0,0 +1,51 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//Reading and writing one line of each token type. VOTE and OUTCOME lines are what every round is made of.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokeniserBenchmark {
+    @Param({"JOIN", "DETAILS", "VOTE_OPTIONS", "VOTE", "MULTI_VOTE", "OUTCOME", "OUTCOME_TIE"})
+    public String type;
+
+    private Cases.Call parseInput;
+    private Cases.Call parseInputBuffer;
+    private Cases.Call toString;
+    private Cases.Call binaryEncode;
+
+    @Setup
+    public void setup(){
+        Cases cases = Cases.load();
+        parseInput = cases.parseInput(type);
+        parseInputBuffer = cases.parseInputBuffer(type);
+        toString = cases.tokenToString(type);
+        binaryEncode = cases.binaryEncode(type);
+    }
+
+    @Benchmark
+    public Object parseInput(){
+        return parseInput.run();
+    }
+
+    @Benchmark
+    public Object parseInputBuffer(){
+        return parseInputBuffer.run();
+    }
+
+    @Benchmark
+    public Object tokenToString(){
+        return toString.run();
+    }
+
+    @Benchmark
+    public Object binaryEncode(){
+        return binaryEncode.run();
+    }
+}
@@ -0,0 +1,37 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//The tally. castMultiVoteElection is a whole election per op, voters * 4 casts : divide by that for the cost of one.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VotingBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int voters;
+
+    private Cases.Call castMultiVoteElection;
+    private Cases.Call getWinningVotes;
+
+    @Setup
+    public void setup(){
+        Cases cases = Cases.load();
+        castMultiVoteElection = cases.castMultiVoteElection(voters);
+        getWinningVotes = cases.getWinningVotes(voters);
+    }
+
+    @Benchmark
+    public Object castMultiVoteElection(){
+        return castMultiVoteElection.run();
+    }
+
+    @Benchmark
+    public Object getWinningVotes(){
+        return getWinningVotes.run();
+    }
+}
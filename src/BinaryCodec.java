@@ -0,0 +1,266 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BinaryCodec implements WireCodec {
+    //Frame layout : MAGIC, varint body length, then the body = type tag, varint election, then the token's fields, then
+    //the varint epoch of a restarted election (left out while it is 0).
+    //Ports and counts are unsigned varints, strings are a varint byte length followed by UTF-8 bytes.
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+    public static final byte MAGIC = (byte) 0xB7; //A UTF-8 continuation byte, so it can never start a text line
+
+    private static final byte JOIN = 1;
+    private static final byte DETAILS = 2;
+    private static final byte VOTE_OPTIONS = 3;
+    private static final byte VOTE = 4;
+    private static final byte MULTI_VOTE = 5;
+    private static final byte OUTCOME = 6;
+    private static final byte HEARTBEAT = 7;
+    private static final byte DIGEST = 8;
+
+    @Override
+    public ByteBuffer encode(Token token){
+        Body body = new Body();
+        if (token instanceof JoinToken){
+            JoinToken join = (JoinToken) token;
+            body.put(JOIN);
+            body.putVarint(token.getElection());
+            body.putVarint(join.getPort());
+            body.put((byte) (join.isBinary() ? 1 : 0));
+        } else if (token instanceof DetailsToken){
+            body.put(DETAILS);
+            body.putVarint(token.getElection());
+            DetailsToken details = (DetailsToken) token;
+            body.putPorts(details.getPorts());
+            if (details.isTree()){
+                body.putVarint(details.getParent());
+            }
+        } else if (token instanceof VoteOptionsToken){
+            String[] options = ((VoteOptionsToken) token).getOptions();
+            body.put(VOTE_OPTIONS);
+            body.putVarint(token.getElection());
+            body.putVarint(options.length);
+            for (String option : options){
+                body.putString(option);
+            }
+        } else if (token instanceof VoteToken){
+            body.put(VOTE);
+            body.putVarint(token.getElection());
+            body.putVarint(((VoteToken) token).getPort());
+            body.putString(((VoteToken) token).getVote());
+        } else if (token instanceof MultiVoteToken){
+            Map<Integer, String> votes = ((MultiVoteToken) token).getVotes();
+            body.put(MULTI_VOTE);
+            body.putVarint(token.getElection());
+            body.putVarint(votes.size());
+            for (Map.Entry<Integer, String> vote : votes.entrySet()){
+                body.putVarint(vote.getKey());
+                body.putString(vote.getValue());
+            }
+        } else if (token instanceof OutcomeToken){
+            OutcomeToken outcome = (OutcomeToken) token;
+            body.put(OUTCOME);
+            body.putVarint(token.getElection());
+            if (outcome.getOutcome() == null){
+                body.put((byte) 0);
+                body.putVarint(outcome.getTiedOptions().size());
+                for (String option : outcome.getTiedOptions()){
+                    body.putString(option);
+                }
+            } else {
+                body.put(outcome.isEarly() ? (byte) 2 : (byte) 1);
+                body.putString(outcome.getOutcome());
+                body.putPorts(outcome.getVoters());
+            }
+        } else if (token instanceof HeartbeatToken){
+            body.put(HEARTBEAT);
+            body.putVarint(token.getElection());
+            body.putVarint(((HeartbeatToken) token).getPort());
+        } else if (token instanceof DigestToken){
+            body.put(DIGEST);
+            body.putVarint(token.getElection());
+            body.putBytes(((DigestToken) token).getKnown().toByteArray());
+        } else {
+            throw new IllegalArgumentException("Cannot encode token " + token);
+        }
+        if (token.getEpoch() != 0){
+            body.putVarint(token.getEpoch());
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(1 + 5 + body.size);
+        frame.put(MAGIC);
+        putVarint(frame, body.size);
+        frame.put(body.bytes, 0, body.size);
+        frame.flip();
+        return frame;
+    }
+
+    @Override
+    public int frameLength(ByteBuffer buffer){
+        int i = buffer.position() + 1; //Skip the magic byte
+        int length = 0;
+        int shift = 0;
+        while (true){
+            if (i >= buffer.limit()){
+                return -1;
+            }
+            byte b = buffer.get(i++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                break;
+            }
+            shift += 7;
+        }
+        int total = i - buffer.position() + length;
+        return buffer.remaining() >= total ? total : -1;
+    }
+
+    @Override
+    public Token decode(ByteBuffer frame){
+        frame.get(); //Magic
+        getVarint(frame); //Length, already checked by frameLength
+        byte type = frame.get();
+        int election = getVarint(frame);
+        Token token = decodeFields(type, frame);
+        if (token != null){
+            token.setElection(election);
+            token.setEpoch(frame.hasRemaining() ? getVarint(frame) : 0);
+        }
+        return token;
+    }
+
+    private Token decodeFields(byte type, ByteBuffer frame){
+        switch (type){
+            case JOIN:
+                int port = getVarint(frame);
+                return new JoinToken(port, frame.get() == 1);
+            case DETAILS:
+                int[] ports = getPorts(frame);
+                return new DetailsToken(ports, frame.hasRemaining() ? getVarint(frame) : 0);
+            case VOTE_OPTIONS:
+                String[] options = new String[getVarint(frame)];
+                for (int i = 0; i < options.length; i++){
+                    options[i] = getString(frame);
+                }
+                return new VoteOptionsToken(options);
+            case VOTE:
+                int voter = getVarint(frame);
+                return new VoteToken(voter, getString(frame));
+            case MULTI_VOTE:
+                int count = getVarint(frame);
+                Map<Integer, String> votes = new HashMap<>();
+                for (int i = 0; i < count; i++){
+                    int p = getVarint(frame);
+                    votes.put(p, getString(frame));
+                }
+                return new MultiVoteToken(votes);
+            case OUTCOME:
+                byte kind = frame.get(); //0 on a tie, 1 for an outcome, 2 for one sent on an early majority
+                if (kind == 0){
+                    int tied = getVarint(frame);
+                    List<String> tiedOptions = new ArrayList<>(tied);
+                    for (int i = 0; i < tied; i++){
+                        tiedOptions.add(getString(frame));
+                    }
+                    return new OutcomeToken(null, tiedOptions);
+                } else {
+                    OutcomeToken outcome = new OutcomeToken(getString(frame), getPorts(frame));
+                    outcome.setEarly(kind == 2);
+                    return outcome;
+                }
+            case HEARTBEAT:
+                return new HeartbeatToken(getVarint(frame));
+            case DIGEST:
+                byte[] known = new byte[getVarint(frame)];
+                frame.get(known);
+                return new DigestToken(BitSet.valueOf(known));
+            default:
+                System.err.println("Unknown binary token type : " + type);
+        }
+        return null;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value){
+        while ((value & ~0x7F) != 0){
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer){
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String getString(ByteBuffer buffer){
+        int length = getVarint(buffer);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static int[] getPorts(ByteBuffer buffer){
+        int[] ports = new int[getVarint(buffer)];
+        for (int i = 0; i < ports.length; i++){
+            ports[i] = getVarint(buffer);
+        }
+        return ports;
+    }
+
+    //Growable body, so the frame can be length-prefixed once the size is known
+    private static class Body {
+        private byte[] bytes = new byte[64];
+        private int size = 0;
+
+        void put(byte b){
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        void putVarint(int value){
+            ensure(5);
+            while ((value & ~0x7F) != 0){
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void putString(String value){
+            putBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void putBytes(byte[] value){
+            putVarint(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        void putPorts(int[] ports){
+            putVarint(ports.length);
+            for (int port : ports){
+                putVarint(port);
+            }
+        }
+
+        private void ensure(int extra){
+            if (size + extra > bytes.length){
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class ChannelLink implements Link, EventLoop.Handler {
+    //Non-blocking channel driven by the shared EventLoop, no thread of its own
+    private SocketChannel channel;
+    private EventLoop loop;
+    private Connection connection;
+    private ByteBuffer readBuffer;
+    private Queue<ByteBuffer> pending; //Outbound buffers not yet fully written
+    private AtomicBoolean flushScheduled; //At most one flush task queued on the loop, it picks up every buffer added until it runs
+    private ByteBuffer[] gather; //Reused array for gathering writes
+
+    ChannelLink(SocketChannel channel, EventLoop loop){
+        this.channel = channel;
+        this.loop = loop;
+        this.readBuffer = ByteBuffer.allocate(8192);
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.gather = new ByteBuffer[64];
+    }
+
+    @Override
+    public void start(Connection connection){
+        this.connection = connection;
+        loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isWritable()){
+            flush();
+        }
+        if (key.isValid() && key.isReadable()){
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0){
+                key.cancel();
+                closeChannel();
+                connection.onDisconnect();
+                return;
+            }
+            readBuffer.flip();
+            connection.onBytes(readBuffer);
+            readBuffer.clear();
+        }
+    }
+
+    //The loop already closed the channel, what is left is telling the connection
+    @Override
+    public void onFailed(){
+        if (connection != null){
+            connection.onDisconnect();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer){
+        pending.add(buffer);
+        if (flushScheduled.compareAndSet(false, true)){
+            loop.execute(this::flush);
+        }
+    }
+
+    //Runs on the loop thread. Hands everything pending to the socket in one gathering write per pass,
+    //and waits for OP_WRITE if the socket doesn't take it all.
+    private void flush(){
+        flushScheduled.set(false);
+        try {
+            while (!pending.isEmpty()){
+                int count = 0;
+                for (ByteBuffer buffer : pending){
+                    if (count == gather.length){
+                        break;
+                    }
+                    gather[count++] = buffer;
+                }
+                channel.write(gather, 0, count);
+                for (int i = 0; i < count; i++){
+                    gather[i] = null;
+                    if (pending.peek().hasRemaining()){
+                        loop.interestOps(channel, SelectionKey.OP_WRITE, true);
+                        return;
+                    }
+                    pending.poll();
+                }
+            }
+            loop.interestOps(channel, SelectionKey.OP_WRITE, false);
+        } catch (IOException e) {
+            System.err.println("Failed to write to channel");
+            e.printStackTrace();
+        }
+    }
+
+    private void closeChannel(){
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //Writes out what is already pending before closing, waiting at most a second so a dead peer can't hold up an exit.
+    //Like a closed socket ending its reader, the disconnect is then reported to our own connection too.
+    @Override
+    public void close(){
+        CountDownLatch closed = new CountDownLatch(1);
+        loop.execute(() -> {
+            flush();
+            closeChannel();
+            if (connection != null){
+                connection.onDisconnect();
+            }
+            closed.countDown();
+        });
+        if (loop.inLoop()){
+            return;
+        }
+        try {
+            closed.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
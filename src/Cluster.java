@@ -0,0 +1,63 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class Cluster {
+    //Runs a coordinator and its participants in this JVM over the LoopbackNetwork :
+    //  java Cluster <coordinator port> <participants> <options...>
+    //Participants listen on the ports after the coordinator's and vote at random. Their logging is dropped
+    //unless -Dcluster.verbose=true, only the decision, timings and metrics are printed.
+    private static final boolean verbose = Boolean.getBoolean("cluster.verbose");
+    private static final int timeout = Integer.getInteger("cluster.timeout", 60); //Seconds before giving up on a decision
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3){
+            System.err.println("Usage : java Cluster <coordinator port> <participants> <options...>");
+            System.exit(0);
+        }
+        Settings.loopback = true;
+        int port = Integer.parseInt(args[0]);
+        int participants = Integer.parseInt(args[1]);
+        PrintStream out = System.out;
+        if (!verbose){
+            System.setOut(new PrintStream(new OutputStream(){
+                @Override
+                public void write(int b){
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len){
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        CountDownLatch done = new CountDownLatch(1);
+        Coordinator coordinator = new Coordinator(args, code -> done.countDown());
+        List<Participant> members = new ArrayList<>(participants);
+        for (int i = 1; i <= participants; i++){
+            members.add(new Participant(new String[]{args[0], String.valueOf(port + i), "500", "0"}, code -> {}));
+        }
+        long joined = System.nanoTime();
+        boolean decided = done.await(timeout, TimeUnit.SECONDS);
+        long end = System.nanoTime();
+        System.setOut(out);
+
+        if (!decided){
+            System.out.println("No decision after " + timeout + "s");
+        } else if (coordinator.getDecision() == null){
+            System.out.println("Participants could not agree");
+        } else {
+            System.out.println("Decision : " + coordinator.getDecision().getOutcome() + " with "
+                    + coordinator.getDecision().getVoters().length + "/" + participants + " voters, options " + Arrays.toString(Arrays.copyOfRange(args, 2, args.length)));
+        }
+        System.out.println("Participants started in " + (joined - start) / 1_000_000 + "ms, decided after " + (end - start) / 1_000_000 + "ms");
+        System.out.println("Messages " + Metrics.INSTANCE.getMessagesSent() + ", bytes " + Metrics.INSTANCE.getBytesSent() + ", rssKb " + ProcessStats.residentSetKb());
+        Metrics.report();
+        System.exit(decided && coordinator.getDecision() != null ? 0 : 1);
+    }
+}
@@ -1,101 +1,179 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 public class Connection {
-    private Socket socket;
-    private PrintWriter output;
-    private BufferedReader input;
+    private Link link; //Underlying byte transport, either a blocking socket or a channel on the shared event loop
+    private ByteBuffer inbound; //Bytes received but not yet framed into a full token
+    private volatile WireCodec codec; //Outbound format. Starts as text, switched to binary by the reader once both ends agreed on it at JOIN time, read by every sender
+    private boolean dialed; //True if we opened this connection, false if it was accepted by a ServerThread
     private ClientMessageCallback clientMessageCallback; //Callback used on incoming data
     private SocketDisconnectCallback socketDisconnectCallback; //Callback used when tcp connection is lost
     private int port; //This is the port the client will be listening on (used for other peers wishing to connect)
     private int servPort;
-    private boolean running = false;
+    private volatile boolean disconnected = false; //Set by the link's reader or loop thread, seen by every other thread
+    private Metrics.Traffic traffic; //Messages and bytes over this connection
+    private volatile boolean sentSinceCheck; //Set by every send, cleared by sendIfIdle, so heartbeats only go out on idle connections
 
     public Connection(int servPort, int port, ClientMessageCallback clientMessageCallback, SocketDisconnectCallback socketDisconnectCallback) throws IOException {
         this.servPort = servPort;
         this.port = port;
-        this.socket = new Socket("localhost", port);
         this.clientMessageCallback = clientMessageCallback;
         this.socketDisconnectCallback = socketDisconnectCallback;
+        this.dialed = true;
+        if (Settings.loopback){
+            this.link = LoopbackNetwork.shared().dial(port);
+        } else if (Settings.nio){
+            this.link = new ChannelLink(SocketChannel.open(new InetSocketAddress("localhost", port)), EventLoop.shared());
+        } else {
+            this.link = new SocketLink(new Socket("localhost", port));
+        }
+        this.init();
+    }
+
+    //Wraps a link we dialed ourselves without blocking, see Dialer
+    public Connection(int servPort, int port, Link link, ClientMessageCallback clientMessageCallback, SocketDisconnectCallback socketDisconnectCallback){
+        this.servPort = servPort;
+        this.port = port;
+        this.link = link;
+        this.clientMessageCallback = clientMessageCallback;
+        this.socketDisconnectCallback = socketDisconnectCallback;
+        this.dialed = true;
         this.init();
-        this.setupReadThread();
     }
 
-    public Connection(Socket socket, int port, ClientMessageCallback clientMessageCallback, SocketDisconnectCallback socketDisconnectCallback){
+    public Connection(Socket socket, int port, ClientMessageCallback clientMessageCallback, SocketDisconnectCallback socketDisconnectCallback) throws IOException {
+        this(new SocketLink(socket), port, clientMessageCallback, socketDisconnectCallback);
+    }
+
+    public Connection(Link link, int port, ClientMessageCallback clientMessageCallback, SocketDisconnectCallback socketDisconnectCallback){
         this.servPort = port;
         this.port = port;
-        this.socket = socket;
+        this.link = link;
         this.clientMessageCallback = clientMessageCallback;
         this.socketDisconnectCallback = socketDisconnectCallback;
         this.init();
-        this.setupReadThread();
     }
 
     private void init(){
-        try {
-            this.output = new PrintWriter(socket.getOutputStream());
-            this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        } catch (IOException e) {
-            System.err.println("Failed in init");
-            e.printStackTrace();
-        }
+        this.inbound = ByteBuffer.allocate(1024);
+        this.codec = TextCodec.INSTANCE;
+        this.traffic = Metrics.INSTANCE.open(dialed ? servPort + "->" + port : servPort + "<-?");
+        this.link.start(this);
     }
 
     void send(Token token){
         System.out.println("[" + servPort + "] Sending : " + token.toString() + " to " + port);
-        output.println(token.toString());
-        output.flush();
+        ByteBuffer bytes = codec.encode(token);
+        traffic.sent(bytes.remaining());
+        sentSinceCheck = true;
+        link.write(bytes);
+    }
+
+    //Sends the same token on every connection, encoding it once per wire format. Each link gets its own
+    //read-only view of the shared bytes, so nothing is formatted or copied per connection.
+    static void broadcast(Collection<Connection> connections, Token token){
+        if (connections.isEmpty()){
+            return;
+        }
+        Map<WireCodec, ByteBuffer> encoded = new IdentityHashMap<>(2);
+        int servPort = -1;
+        for (Connection connection : connections){
+            ByteBuffer bytes = encoded.computeIfAbsent(connection.codec, codec -> codec.encode(token).asReadOnlyBuffer());
+            connection.traffic.sent(bytes.remaining());
+            connection.sentSinceCheck = true;
+            connection.link.write(bytes.duplicate());
+            servPort = connection.servPort;
+        }
+        System.out.println("[" + servPort + "] Broadcasting : " + token.toString() + " to " + connections.size() + " connections");
     }
 
-    private void setupReadThread(){
-        running = true;
-        new Thread(() -> {
-            while (running){
-                try {
-                    String line = input.readLine();
-                    if (line == null){
-                        onDisconnect();
-                        return;
-                    }
-                    Token token = Tokeniser.parseInput(line);
-                    if (token instanceof JoinToken){
-                        ((JoinToken) token).setConnection(this);
-                        this.port = ((JoinToken) token).getPort();
-                    } else if (token instanceof MultiVoteToken){
-                        ((MultiVoteToken) token).setSourcePort(port);
-                    } else if (token instanceof VoteToken){
-                        this.port = ((VoteToken) token).getPort();
-                    } else if (token instanceof OutcomeToken){
-                        ((OutcomeToken) token).setSourcePort(port);
-                    }
-                    System.out.println("Message on port " + port + ": " + line);
-                    clientMessageCallback.call(token);
-                } catch (IOException e) {
-                    if(e instanceof SocketException){
-                        onDisconnect();
-                        return;
-                    }
-                    e.printStackTrace();
-                    break;
+    //Called by the link with freshly read bytes, always from the same thread for a given connection
+    void onBytes(ByteBuffer data){
+        if (inbound.remaining() < data.remaining()){
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + data.remaining()));
+            inbound.flip();
+            grown.put(inbound);
+            inbound = grown;
+        }
+        inbound.put(data);
+        inbound.flip();
+        while (inbound.hasRemaining()){
+            //Each frame says which format it is in, so a peer may switch formats mid-stream
+            WireCodec frameCodec = inbound.get(inbound.position()) == BinaryCodec.MAGIC ? BinaryCodec.INSTANCE : TextCodec.INSTANCE;
+            int length = frameCodec.frameLength(inbound);
+            if (length < 0){
+                break;
+            }
+            ByteBuffer frame = inbound.slice();
+            frame.limit(length);
+            inbound.position(inbound.position() + length);
+            traffic.received(length);
+            onToken(frameCodec.decode(frame));
+        }
+        inbound.compact();
+    }
+
+    private void onToken(Token token){
+        if (token instanceof JoinToken){
+            JoinToken join = (JoinToken) token;
+            if (dialed){
+                //The peer we joined acknowledged the binary format, nothing for the application here
+                if (join.isBinary() && Settings.binary){
+                    codec = BinaryCodec.INSTANCE;
                 }
+                return;
+            }
+            join.setConnection(this);
+            setPort(join.getPort());
+            if (join.isBinary() && Settings.binary && codec != BinaryCodec.INSTANCE){
+                codec = BinaryCodec.INSTANCE;
+                send(new JoinToken(servPort, true));
             }
-        }).start();
+        } else if (token instanceof MultiVoteToken){
+            ((MultiVoteToken) token).setSourcePort(port);
+        } else if (token instanceof VoteToken){
+            setPort(((VoteToken) token).getPort());
+        } else if (token instanceof HeartbeatToken){
+            setPort(((HeartbeatToken) token).getPort());
+        } else if (token instanceof OutcomeToken){
+            ((OutcomeToken) token).setSourcePort(port);
+        } else if (token instanceof DigestToken){
+            ((DigestToken) token).setSourcePort(port);
+        }
+        System.out.println("Message on port " + port + ": " + token);
+        clientMessageCallback.call(token);
     }
 
-    private void onDisconnect(){
+    private void setPort(int port){
+        this.port = port;
+        traffic.rename(servPort + (dialed ? "->" : "<-") + port);
+    }
+
+    //Sends the token only if nothing else went out since the last call, which it doesn't count as a send itself
+    void sendIfIdle(Token token){
+        if (!sentSinceCheck){
+            send(token);
+        }
+        sentSinceCheck = false;
+    }
+
+    void onDisconnect(){
+        if (disconnected){
+            return;
+        }
+        disconnected = true;
+        traffic.close();
         socketDisconnectCallback.call(port);
     }
 
     void stop(){
-        try {
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        running = false;
+        traffic.close();
+        link.close();
     }
 }
@@ -1,29 +1,63 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
 
 public class Coordinator {
     //Initialisation members
     private int port;
     private int expectedParticipants;
-    private String[] voteOptions;
+    private List<String[]> questions; //Option lists given on the command line, separated by "/" (ie. A B / X Y), each one its own election unless batched
 
     //Runtime members
     private ServerThread serverThread;
     private ArrayList<Integer> ports;
     private ArrayList<Integer> remainingParticipants; //Participants are removed from the list as they fail
     private Map<Integer, Connection> participants;
-    private List<OutcomeToken> outcomes;
+    private Map<Integer, Election> elections; //Elections in progress, by election id
+    private List<Election> pendingElections; //Elections requested before every participant joined
+    private OutcomeToken decision; //Outcome of the last election everyone agreed on
+    private boolean disagreement; //Set once participants sent conflicting outcomes
+    private int nextElection; //Id of the next election. The first one is 0, which keeps it compatible with older participants
+    private IntConsumer exit; //Called with the exit code once the vote is over, System.exit unless the cluster shares a JVM
+    private ReentrantLock lock; //Guards the handlers below. A lock rather than synchronized so virtual reader threads don't pin their carrier
 
     private enum CoordinatorState {WAITING_FOR_PARTICIPANTS, SENDING_DETAILS, SENDING_VOTING_OPTIONS, WAITING_FOR_OUTCOME, VOTE_RESTART, DONE}
-    private CoordinatorState currentState;
+    private CoordinatorState currentState; //Joining phase only, once the details are sent each election has its own state
+
+    //One vote, from VOTE_OPTIONS to conclusion, including its restarts
+    private class Election {
+        private int id;
+        private String[] voteOptions;
+        private List<OutcomeToken> outcomes;
+        private CoordinatorState currentState;
+        private long startedAt; //System.nanoTime() when the first VOTE_OPTIONS went out
+
+        Election(int id, String[] voteOptions){
+            this.id = id;
+            this.voteOptions = voteOptions;
+            this.outcomes = new ArrayList<>();
+        }
+    }
 
     public Coordinator(String[] args){
+        this(args, System::exit);
+    }
+
+    public Coordinator(String[] args, IntConsumer exit){
+        this.exit = exit;
         parseArgs(args);
         this.serverThread = new ServerThread(port, expectedParticipants, this::onParticipantData, this::onParticipantDisconnect);
         this.ports = new ArrayList<>(expectedParticipants);
         this.remainingParticipants = new ArrayList<>(expectedParticipants);
         this.participants = new HashMap<>();
-        this.outcomes = new ArrayList<>();
+        this.elections = new HashMap<>();
+        this.pendingElections = new ArrayList<>();
+        this.nextElection = 0;
+        this.lock = new ReentrantLock();
         start();
     }
 
@@ -34,27 +68,98 @@ public class Coordinator {
         }
         this.port = Integer.parseInt(args[0]);
         this.expectedParticipants = Integer.parseInt(args[1]);
-        this.voteOptions = Arrays.copyOfRange(args, 2, args.length);
+        String[] options = Arrays.copyOfRange(args, 2, args.length);
+        if (Settings.batched){
+            //One ballot for every question, VOTE_OPTIONS keeping the separators
+            this.questions = Collections.singletonList(options);
+        } else {
+            this.questions = Voting.splitQuestions(options);
+        }
     }
 
     private void start(){
         this.currentState = CoordinatorState.WAITING_FOR_PARTICIPANTS;
-        Thread thread = new Thread(serverThread);
-        thread.start();
+        Metrics.start("coordinator " + port);
+        //Every question runs at the same time over the one set of connections, the participants keeping a ballot per election
+        for (String[] voteOptions : questions){
+            startElection(voteOptions);
+        }
+        Threads.start(serverThread);
+        if (Settings.longRunning){
+            Threads.start(this::readElectionRequests);
+        }
     }
 
-    private synchronized void onParticipantData(Token token){
-        if (token instanceof JoinToken){
-            onJoin((JoinToken) token);
-        } else if (token instanceof OutcomeToken){
-            onOutcome((OutcomeToken) token);
+    //Starts a new election over the existing participant connections and returns its id.
+    //Elections requested before every participant has joined start as soon as the details are sent.
+    public int startElection(String[] voteOptions){
+        lock.lock();
+        try {
+            Election election = new Election(nextElection++, voteOptions);
+            if (currentState == CoordinatorState.WAITING_FOR_PARTICIPANTS || currentState == CoordinatorState.SENDING_DETAILS){
+                pendingElections.add(election);
+            } else {
+                elections.put(election.id, election);
+                sendVotingOptions(election);
+            }
+            return election.id;
+        } finally {
+            lock.unlock();
         }
     }
 
-    private synchronized void onParticipantDisconnect(int port){
-        System.out.println("Participant disconnect on port " + port);
-        this.remainingParticipants.remove(Integer.valueOf(port));
-        checkOutcomeRoundEnd();
+    //In long running mode every line on stdin is the option list of a new election, ie. "A B C"
+    private void readElectionRequests(){
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                String[] options = line.trim().split("\\s+");
+                if (options[0].isEmpty()){
+                    continue;
+                }
+                int id = startElection(options);
+                System.out.println("Election " + id + " requested with options " + Arrays.toString(options));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read election requests");
+            e.printStackTrace();
+        }
+    }
+
+    private void onParticipantData(Token token){
+        lock.lock();
+        try {
+            if (token instanceof JoinToken){
+                onJoin((JoinToken) token);
+            } else if (token instanceof OutcomeToken){
+                onOutcome((OutcomeToken) token);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onParticipantDisconnect(int port){
+        lock.lock();
+        try {
+            System.out.println("Participant disconnect on port " + port);
+            this.remainingParticipants.remove(Integer.valueOf(port));
+            if (Settings.treeArity > 0 && !ports.isEmpty() && port == ports.get(0)){
+                for (Election election : elections.values()){
+                    if (election.currentState != CoordinatorState.DONE){
+                        System.out.println("The root of the aggregation tree failed before reporting, the vote can't be concluded");
+                        killConnections();
+                        return;
+                    }
+                }
+            }
+            for (Election election : new ArrayList<>(elections.values())){
+                checkOutcomeRoundEnd(election);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void onJoin(JoinToken token){
@@ -65,81 +170,148 @@ public class Coordinator {
         this.participants.put(token.getPort(), token.getConnection());
         if (checkIfAllParticipantsJoined()){
             sendDetails();
-            sendVotingOptions();
+            for (Election election : pendingElections){
+                elections.put(election.id, election);
+                sendVotingOptions(election);
+            }
+            pendingElections.clear();
         }
     }
 
     private void onOutcome(OutcomeToken token){
         System.out.println("Outcome received from " + token.getSourcePort() + " : " + token.getOutcome() + ", " + token.getTiedOptions());
-        outcomes.add(token);
-        checkOutcomeRoundEnd();
+        Election election = elections.get(token.getElection());
+        if (election == null){
+            System.err.println("Outcome for unknown or finished election " + token.getElection());
+            return;
+        }
+        election.outcomes.add(token);
+        checkOutcomeRoundEnd(election);
     }
 
-    private void checkOutcomeRoundEnd(){
-        if (currentState == CoordinatorState.DONE){
+    private void checkOutcomeRoundEnd(Election election){
+        if (election.currentState == CoordinatorState.DONE){
             return;
         }
-        if (allOutcomesReceived()){
-            currentState = CoordinatorState.DONE;
-            conclude();
+        if (allOutcomesReceived(election)){
+            election.currentState = CoordinatorState.DONE;
+            conclude(election);
         }
     }
 
     private void sendDetails(){
         this.currentState = CoordinatorState.SENDING_DETAILS;
-        Map<Integer, List<Integer>> detailsMapping = getDetailsMapping();
+        if (Settings.treeArity > 0){
+            Map<Integer, DetailsToken> tree = getTreeMapping(ports, Settings.treeArity, port);
+            for (int port : tree.keySet()){
+                participants.get(port).send(tree.get(port));
+            }
+            this.currentState = CoordinatorState.WAITING_FOR_OUTCOME;
+            return;
+        }
+        Map<Integer, List<Integer>> detailsMapping = getDetailsMapping(ports);
         for (int port: detailsMapping.keySet()){
             //TODO send detailsMapping.get(port) to port
             participants.get(port).send(new DetailsToken(detailsMapping.get(port).stream().mapToInt(Integer::intValue).toArray()));
         }
+        this.currentState = CoordinatorState.WAITING_FOR_OUTCOME;
     }
 
-    private void sendVotingOptions(){
-        this.currentState = CoordinatorState.SENDING_VOTING_OPTIONS;
-        VoteOptionsToken voteOptionsToken = new VoteOptionsToken(voteOptions);
+    private void sendVotingOptions(Election election){
+        election.currentState = CoordinatorState.SENDING_VOTING_OPTIONS;
+        if (election.startedAt == 0){
+            election.startedAt = System.nanoTime();
+        }
+        VoteOptionsToken voteOptionsToken = new VoteOptionsToken(election.voteOptions);
+        voteOptionsToken.setElection(election.id);
         serverThread.sendToAll(voteOptionsToken);
-        currentState = CoordinatorState.WAITING_FOR_OUTCOME;
+        election.currentState = CoordinatorState.WAITING_FOR_OUTCOME;
     }
 
-    private void restartVote(){
-        currentState = CoordinatorState.VOTE_RESTART;
-        outcomes.clear();
-        sendVotingOptions();
+    private void restartVote(Election election){
+        election.currentState = CoordinatorState.VOTE_RESTART;
+        election.outcomes.clear();
+        sendVotingOptions(election);
     }
 
-    private void conclude(){
+    private void conclude(Election election){
+        List<OutcomeToken> outcomes = election.outcomes;
+        if (Settings.earlyDecision){
+            //An early conclusion is the proven majority, the outcomes received so far are checked against it
+            outcomes.stream().filter(this::hasProvenMajority).findFirst().ifPresent(proven -> {
+                outcomes.remove(proven);
+                outcomes.add(0, proven);
+            });
+        }
         System.out.println();
-        List<OutcomeToken> filtered = outcomes.stream().filter(n -> n.getOutcome() != null).filter(n -> !outcomes.get(0).getOutcome().equals(n.getOutcome())).collect(Collectors.toList());
+        if (Settings.longRunning)
+            System.out.println("Concluding election " + election.id);
+        List<OutcomeToken> filtered = outcomes.stream().filter(n -> n.getOutcome() != null).filter(n -> !Objects.equals(outcomes.get(0).getOutcome(), n.getOutcome())).collect(Collectors.toList());
         if (filtered.size() > 0){
+            Metrics.INSTANCE.electionDuration.recordSince(election.startedAt);
+            disagreement = true;
             System.out.println("We were not able to conclude, not all peers agree");
             System.out.println(outcomes);
+            if (Settings.longRunning)
+                finishElection(election, new OutcomeToken(null, Collections.emptyList()));
         } else {
             if (outcomes.get(0).getOutcome() == null){
                 System.out.println("Tie or no majority, we need to rerun the vote with fewer options");
 
                 List<String> tiedOptions = outcomes.get(0).getTiedOptions();
-                voteOptions = new String[tiedOptions.size()];
-                voteOptions = tiedOptions.toArray(voteOptions);
-                restartVote();
+                election.voteOptions = new String[tiedOptions.size()];
+                election.voteOptions = tiedOptions.toArray(election.voteOptions);
+                restartVote(election);
             } else {
+                Metrics.INSTANCE.electionDuration.recordSince(election.startedAt);
+                decision = outcomes.get(0);
                 System.out.println("Conclusion was made! The outcome of the vote was " + outcomes.get(0).getOutcome());
                 if (outcomes.get(0).getVoters().length == expectedParticipants){
                     System.out.println("Every participant was taken into account when deciding the outcome of the vote.");
+                } else if (hasProvenMajority(outcomes.get(0))){
+                    System.out.println("Decided early, " + outcomes.get(0).getVoters().length + " of " + expectedParticipants + " participants voted for the outcome.");
                 } else {
                     System.out.println("Unfortunately, not every participant was taken into account when resolving the outcome of the vote.");
                 }
-                killConnections();
-                System.out.println("Killed connections");
+                if (Settings.longRunning){
+                    finishElection(election, outcomes.get(0));
+                } else if (allElectionsDone()){
+                    killConnections();
+                    System.out.println("Killed connections");
+                }
             }
         }
     }
 
+    private boolean allElectionsDone(){
+        if (!pendingElections.isEmpty()){
+            return false;
+        }
+        for (Election election : elections.values()){
+            if (election.currentState != CoordinatorState.DONE){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Long running mode : tell the participants the election is over so they can drop its state, and keep the connections
+    private void finishElection(Election election, OutcomeToken outcome){
+        elections.remove(election.id);
+        outcome.setElection(election.id);
+        serverThread.sendToAll(outcome);
+        Metrics.report();
+    }
+
     private void killConnections(){
         System.out.println("Killing connections");
+        ProcessStats.report("coordinator " + port);
+        Metrics.report();
         for (Connection connection : participants.values()){
             connection.stop();
         }
-        System.exit(1);
+        serverThread.stop();
+        exit.accept(1);
     }
 
     private boolean checkIfAllParticipantsJoined(){
@@ -150,7 +322,7 @@ public class Coordinator {
         return false;
     }
 
-    private Map<Integer, List<Integer>> getDetailsMapping(){
+    static Map<Integer, List<Integer>> getDetailsMapping(List<Integer> ports){
         //Returns a mapping where the key is the port to send to and the value is the details of the other ports
         Map<Integer, List<Integer>> mapping = new HashMap<>();
         for (int port : ports){
@@ -165,11 +337,62 @@ public class Coordinator {
         return mapping;
     }
 
-    private boolean allOutcomesReceived(){
-        return outcomes.size() == remainingParticipants.size();
+    //Lays the participants out as a k-ary tree in join order, heap style : the children of the i-th participant are
+    //participants k*i+1 to k*i+k. The first one is the root and reports to us.
+    static Map<Integer, DetailsToken> getTreeMapping(List<Integer> ports, int arity, int coordinatorPort){
+        Map<Integer, DetailsToken> mapping = new HashMap<>();
+        for (int i = 0; i < ports.size(); i++){
+            int first = Math.min(arity * i + 1, ports.size());
+            int last = Math.min(arity * i + arity, ports.size() - 1);
+            int[] children = new int[Math.max(0, last - first + 1)];
+            for (int child = 0; child < children.length; child++){
+                children[child] = ports.get(first + child);
+            }
+            int parent = i == 0 ? coordinatorPort : ports.get((i - 1) / arity);
+            mapping.put(ports.get(i), new DetailsToken(children, parent));
+        }
+        return mapping;
+    }
+
+    private boolean allOutcomesReceived(Election election){
+        if (Settings.treeArity > 0){
+            //Only the root of the tree reports, with the votes of every participant it heard from
+            return !election.outcomes.isEmpty();
+        }
+        if (Settings.earlyDecision && election.outcomes.stream().anyMatch(this::hasProvenMajority)){
+            //Its voters are more than half of everyone, whatever the others report can't change the outcome
+            return true;
+        }
+        return election.outcomes.size() == remainingParticipants.size();
+    }
+
+    //Only an outcome sent on an early majority lists just the voters for it, an ordinary one lists every voter its sender
+    //heard from whatever they voted, so it proves nothing. The voters must be distinct participants, more than half of everyone.
+    private boolean hasProvenMajority(OutcomeToken outcome){
+        if (!outcome.isEarly() || outcome.getOutcome() == null){
+            return false;
+        }
+        Set<Integer> known = new HashSet<>(ports);
+        Set<Integer> backers = new HashSet<>();
+        for (int voter : outcome.getVoters()){
+            if (!known.contains(voter) || !backers.add(voter)){
+                System.out.println("Early outcome from " + outcome.getSourcePort() + " lists " + voter + " more than once or who never joined, waiting for the others");
+                return false;
+            }
+        }
+        return backers.size() * 2 > expectedParticipants;
+    }
+
+    public OutcomeToken getDecision(){
+        return decision;
+    }
+
+    public boolean hadDisagreement(){
+        return disagreement;
     }
 
     public static void main(String[] args){
         Coordinator coordinator = new Coordinator(args);
+        Threads.keepAlive();
     }
 }
@@ -0,0 +1,135 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.function.Consumer;
+
+public class Dialer {
+    //Opens a link to a peer without blocking the caller, so every peer of the mesh is dialed at once and setup takes as long
+    //as the slowest of them instead of their sum. A refused dial, ie. a peer whose ServerThread isn't listening yet, is retried
+    //on the shared timer with jittered exponential backoff. Whatever isn't connected by the deadline is given up on.
+    //onDone gets the link, or null, exactly once and from whichever thread finished the dial.
+    private static final long FIRST_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 320;
+
+    private int port;
+    private long deadline; //Timer time after which we stop trying
+    private long backoff; //Upper bound of the next retry's delay, doubled on every refusal
+    private Random random; //Spreads the retries, so peers that started together don't all come back at the same tick
+    private HashedWheelTimer timer;
+    private Consumer<Link> onDone;
+
+    private Dialer(int port, long timeoutMillis, Random random, Consumer<Link> onDone){
+        this.port = port;
+        this.timer = HashedWheelTimer.shared();
+        this.deadline = timer.now() + timeoutMillis;
+        this.backoff = FIRST_BACKOFF_MILLIS;
+        this.random = random;
+        this.onDone = onDone;
+    }
+
+    static void dial(int port, long timeoutMillis, Random random, Consumer<Link> onDone){
+        new Dialer(port, timeoutMillis, random, onDone).attempt();
+    }
+
+    private void attempt(){
+        long remaining = Math.max(deadline - timer.now(), 1);
+        if (Settings.loopback){
+            try {
+                onDone.accept(LoopbackNetwork.shared().dial(port));
+            } catch (IOException e) {
+                retry(e);
+            }
+        } else if (Settings.nio){
+            connectChannel(remaining);
+        } else {
+            Threads.start(() -> connectSocket(remaining));
+        }
+    }
+
+    //Blocking connect with a timeout, on a thread of its own
+    private void connectSocket(long remaining){
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("localhost", port), (int) Math.min(remaining, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            closeQuietly(socket);
+            retry(e);
+            return;
+        }
+        try {
+            onDone.accept(new SocketLink(socket));
+        } catch (IOException e) {
+            closeQuietly(socket);
+            onDone.accept(null);
+        }
+    }
+
+    //Non-blocking connect finished on the event loop, the timeout closing the channel if it gets there first
+    private void connectChannel(long remaining){
+        EventLoop loop = EventLoop.shared();
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress("localhost", port))){
+                onDone.accept(new ChannelLink(channel, loop));
+                return;
+            }
+        } catch (IOException e) {
+            retry(e);
+            return;
+        }
+        boolean[] settled = {false}; //Only touched on the loop thread
+        HashedWheelTimer.Timeout expiry = timer.newTimeout(() -> loop.execute(() -> {
+            if (!settled[0]){
+                settled[0] = true;
+                closeQuietly(channel);
+                onDone.accept(null);
+            }
+        }), remaining);
+        loop.register(channel, SelectionKey.OP_CONNECT, key -> {
+            if (settled[0]){
+                return;
+            }
+            try {
+                if (!channel.finishConnect()){
+                    return;
+                }
+            } catch (IOException e) {
+                settled[0] = true;
+                expiry.cancel();
+                closeQuietly(channel);
+                retry(e);
+                return;
+            }
+            settled[0] = true;
+            expiry.cancel();
+            //The key stays registered, ChannelLink.start registering the channel again only swaps its interest and handler
+            key.interestOps(0);
+            onDone.accept(new ChannelLink(channel, loop));
+        });
+    }
+
+    private void retry(IOException e){
+        //Only a refusal means the peer may still come up, anything else (timeout, unknown host) is final
+        if (!(e instanceof ConnectException) || timer.now() + backoff / 2 >= deadline){
+            onDone.accept(null);
+            return;
+        }
+        long delay = backoff / 2 + random.nextInt((int) (backoff / 2) + 1);
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        timer.newTimeout(this::attempt, delay);
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
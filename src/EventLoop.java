@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop implements Runnable {
+    //Single selector thread handling accept, read and write for every registered channel
+    private static EventLoop shared;
+
+    private Selector selector;
+    private Queue<Runnable> tasks; //Work submitted from other threads, run on the loop thread before each select
+    private Thread thread;
+    private boolean running = false;
+
+    interface Handler {
+        //Called on the loop thread with the ready operations of the key
+        void onReady(SelectionKey key) throws IOException;
+
+        //Called on the loop thread once onReady threw a RuntimeException and the loop closed the channel
+        default void onFailed(){
+        }
+    }
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    public static synchronized EventLoop shared(){
+        if (shared == null){
+            try {
+                shared = new EventLoop();
+            } catch (IOException e) {
+                System.err.println("Failed to open selector");
+                e.printStackTrace();
+                return null;
+            }
+            shared.start();
+        }
+        return shared;
+    }
+
+    void start(){
+        running = true;
+        thread = new Thread(this, "event-loop");
+        thread.start();
+    }
+
+    void register(SelectableChannel channel, int ops, Handler handler){
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, ops, handler);
+            } catch (IOException e) {
+                System.err.println("[EventLoop] Failed to register channel");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    void interestOps(SelectableChannel channel, int ops, boolean enable){
+        execute(() -> {
+            SelectionKey key = channel.keyFor(selector);
+            if (key == null || !key.isValid()){
+                return;
+            }
+            key.interestOps(enable ? key.interestOps() | ops : key.interestOps() & ~ops);
+        });
+    }
+
+    Selector selector(){
+        return selector;
+    }
+
+    boolean inLoop(){
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task){
+        tasks.add(task);
+        if (Thread.currentThread() != thread){
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running){
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null){
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("[EventLoop] Task failed");
+                        e.printStackTrace();
+                    }
+                }
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()){
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()){
+                        continue;
+                    }
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.onReady(key);
+                    } catch (IOException e) {
+                        //The handler is responsible for reporting the disconnect, we just drop the key and its channel
+                        drop(key);
+                    } catch (RuntimeException e) {
+                        //Ie. a malformed frame or a failing callback. Only this channel goes, the others are still served
+                        System.err.println("[EventLoop] Handler failed, closing its channel");
+                        e.printStackTrace();
+                        drop(key);
+                        try {
+                            handler.onFailed();
+                        } catch (RuntimeException again) {
+                            again.printStackTrace();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[EventLoop] Select failed");
+                e.printStackTrace();
+                break;
+            }
+        }
+    }
+
+    private static void drop(SelectionKey key){
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    void stop(){
+        running = false;
+        selector.wakeup();
+    }
+}
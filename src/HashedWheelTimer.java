@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class HashedWheelTimer implements Runnable {
+    //Timeouts hashed into a wheel of tick sized buckets, as in Netty : scheduling and cancelling are O(1) and a tick only
+    //looks at one bucket, which suits many short timers that are mostly cancelled before they fire (heartbeats, round timeouts).
+    //Deadlines are rounded up to the next tick. The shared timer is advanced by its own thread from the real clock,
+    //a Simulator installs one it advances itself on virtual time.
+    static final int TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 512; //Power of two, a full turn is a little over 5 seconds
+    private static HashedWheelTimer shared;
+
+    private List<List<Timeout>> wheel; //WHEEL_SIZE buckets, indexed by tick
+    private long tick; //Ticks already processed
+    private long now; //Milliseconds since the timer started, as of the last advance
+    private int pending; //Timeouts scheduled and neither fired nor cancelled
+    private ReentrantLock lock; //Guards the wheel, tasks run outside of it
+    private Thread thread;
+
+    public class Timeout {
+        private long deadlineTick;
+        private Runnable task;
+        private boolean done; //Fired or cancelled
+
+        private Timeout(long deadlineTick, Runnable task){
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        //Returns false if the timeout already fired or was cancelled
+        public boolean cancel(){
+            lock.lock();
+            try {
+                if (done){
+                    return false;
+                }
+                done = true;
+                pending--;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public HashedWheelTimer(){
+        this.wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++){
+            wheel.add(new ArrayList<>());
+        }
+        this.tick = 0;
+        this.now = 0;
+        this.pending = 0;
+        this.lock = new ReentrantLock();
+    }
+
+    public static synchronized HashedWheelTimer shared(){
+        if (shared == null){
+            shared = new HashedWheelTimer();
+            shared.start();
+        }
+        return shared;
+    }
+
+    //Makes every later timeout go through the given timer, ie. a Simulator's
+    static synchronized void install(HashedWheelTimer timer){
+        shared = timer;
+    }
+
+    void start(){
+        thread = new Thread(this, "timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run(){
+        long start = System.nanoTime();
+        while (true){
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            advanceTo((System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    //Runs the task once, at least delayMillis from now
+    public Timeout newTimeout(Runnable task, long delayMillis){
+        lock.lock();
+        try {
+            //Never in the tick being processed, whose bucket may already have been looked at
+            long deadlineTick = Math.max((now + delayMillis + TICK_MILLIS - 1) / TICK_MILLIS, tick + 1);
+            Timeout timeout = new Timeout(deadlineTick, task);
+            wheel.get((int) (deadlineTick & (WHEEL_SIZE - 1))).add(timeout);
+            pending++;
+            return timeout;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Processes every tick up to the given time, then runs the timeouts that came due, earlier ticks first
+    public void advanceTo(long nowMillis){
+        List<Timeout> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            while ((tick + 1) * TICK_MILLIS <= nowMillis){
+                tick++;
+                List<Timeout> bucket = wheel.get((int) (tick & (WHEEL_SIZE - 1)));
+                for (int i = bucket.size() - 1; i >= 0; i--){
+                    Timeout timeout = bucket.get(i);
+                    if (timeout.done){
+                        removeAt(bucket, i);
+                    } else if (timeout.deadlineTick <= tick){
+                        //Later turns of the wheel stay in the bucket until their own turn comes
+                        timeout.done = true;
+                        pending--;
+                        expired.add(timeout);
+                        removeAt(bucket, i);
+                    }
+                }
+            }
+            now = Math.max(now, nowMillis);
+        } finally {
+            lock.unlock();
+        }
+        for (Timeout timeout : expired){
+            timeout.task.run();
+        }
+    }
+
+    //Order within a bucket doesn't matter, so the last element fills the hole
+    private static void removeAt(List<Timeout> bucket, int i){
+        Timeout last = bucket.remove(bucket.size() - 1);
+        if (i < bucket.size()){
+            bucket.set(i, last);
+        }
+    }
+
+    public long now(){
+        lock.lock();
+        try {
+            return now;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Time of the next tick, -1 if nothing is pending
+    public long nextTick(){
+        lock.lock();
+        try {
+            return pending == 0 ? -1 : (tick + 1) * TICK_MILLIS;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+    //Log-linear buckets in the style of HdrHistogram : values below 16 get a bucket each, above that every power of two
+    //is split into 8 buckets, so any recorded value is off by at most 12.5%. Recording is lock free and never allocates.
+    private static final int SUB_BUCKETS = 8;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - 4 + 1) * SUB_BUCKETS;
+
+    private final String unit;
+    private final AtomicLongArray counts;
+    private final LongAdder total;
+    private final LongAdder sum;
+    private volatile long max;
+
+    public Histogram(String unit){
+        this.unit = unit;
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.total = new LongAdder();
+        this.sum = new LongAdder();
+    }
+
+    public void record(long value){
+        if (value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+        if (value > max){
+            synchronized (this){
+                if (value > max){
+                    max = value;
+                }
+            }
+        }
+    }
+
+    //Records the time since startNanos in microseconds
+    public void recordSince(long startNanos){
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount(){
+        return total.sum();
+    }
+
+    public long getMax(){
+        return max;
+    }
+
+    public double getMean(){
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    //Upper bound of the bucket holding the given percentile, 0 if nothing was recorded
+    public long getPercentile(double percentile){
+        long count = total.sum();
+        if (count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++){
+            seen += counts.get(bucket);
+            if (seen >= rank){
+                return Math.min(upperBound(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    private static int bucket(long value){
+        if (value < LINEAR){
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); //At least 4
+        int sub = (int) (value >>> (magnitude - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR + (magnitude - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket){
+        if (bucket < LINEAR){
+            return bucket;
+        }
+        int magnitude = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (magnitude - 3)) - 1;
+    }
+
+    @Override
+    public String toString(){
+        long count = getCount();
+        if (count == 0){
+            return "count=0";
+        }
+        return "count=" + count
+                + " mean=" + Math.round(getMean()) + unit
+                + " p50=" + getPercentile(50) + unit
+                + " p90=" + getPercentile(90) + unit
+                + " p99=" + getPercentile(99) + unit
+                + " max=" + getMax() + unit;
+    }
+}
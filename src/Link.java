@@ -0,0 +1,11 @@
+import java.nio.ByteBuffer;
+
+interface Link {
+    //Byte pipe underneath a Connection. Inbound bytes are handed to Connection.onBytes, always from a single thread.
+    void start(Connection connection);
+
+    void write(ByteBuffer buffer);
+
+    //Reports the disconnect to both ends' connections, ours included, once pending writes are out
+    void close();
+}
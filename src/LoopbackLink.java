@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+class LoopbackLink implements Link {
+    //One end of an in-memory connection. Writes are handed to the peer end on the network's dispatcher thread.
+    private LoopbackNetwork network;
+    private LoopbackLink peer;
+    private Connection connection; //Only touched on the dispatcher thread
+    private List<ByteBuffer> early; //Bytes that arrived before start, only touched on the dispatcher thread
+    private volatile boolean closed = false;
+
+    LoopbackLink(LoopbackNetwork network){
+        this.network = network;
+    }
+
+    void connect(LoopbackLink peer){
+        this.peer = peer;
+    }
+
+    @Override
+    public void start(Connection connection){
+        network.execute(() -> {
+            this.connection = connection;
+            if (early != null){
+                early.forEach(connection::onBytes);
+                early = null;
+            }
+        });
+    }
+
+    //The buffer is passed by reference, callers hand over buffers they no longer touch (ie. broadcast duplicates)
+    @Override
+    public void write(ByteBuffer buffer){
+        if (closed){
+            return;
+        }
+        network.deliver(this, () -> peer.receive(buffer));
+    }
+
+    private void receive(ByteBuffer buffer){
+        if (connection == null){
+            if (early == null){
+                early = new ArrayList<>();
+            }
+            early.add(buffer);
+            return;
+        }
+        connection.onBytes(buffer);
+    }
+
+    //Bytes already written are delivered before the peer sees the disconnect
+    @Override
+    public void close(){
+        if (closed){
+            return;
+        }
+        closed = true;
+        //Reported to our own connection too, the way closing a socket ends its reader
+        network.execute(() -> {
+            if (connection != null){
+                connection.onDisconnect();
+            }
+        });
+        network.disconnect(this, () -> {
+            if (peer.connection != null){
+                peer.connection.onDisconnect();
+            }
+            peer.closed = true;
+        });
+    }
+}
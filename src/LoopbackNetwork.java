@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+public class LoopbackNetwork implements Runnable {
+    //In-memory stand in for localhost TCP, so a coordinator and its participants can share one JVM (consensus.loopback).
+    //Ports are just keys, every delivery runs on a single dispatcher thread fed by a lock-free queue,
+    //which keeps each connection's bytes in order and means no thread or socket buffer per connection.
+    private static LoopbackNetwork shared;
+
+    private Map<Integer, Consumer<Link>> listeners; //Bound port to the acceptor of its ServerThread
+    private AtomicInteger nextEphemeralPort; //Stands in for the client port of an accepted connection
+    private Queue<Runnable> tasks;
+    private AtomicBoolean parked; //Set while the dispatcher is about to park or parked, producers unpark it
+    private Thread thread;
+
+    public LoopbackNetwork(){
+        this.listeners = new ConcurrentHashMap<>();
+        this.nextEphemeralPort = new AtomicInteger(50000);
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.parked = new AtomicBoolean(false);
+    }
+
+    public static synchronized LoopbackNetwork shared(){
+        if (shared == null){
+            shared = new LoopbackNetwork();
+            shared.start();
+        }
+        return shared;
+    }
+
+    //Makes every later dial and listen go through the given network, ie. a Simulator's
+    static synchronized void install(LoopbackNetwork network){
+        shared = network;
+    }
+
+    void start(){
+        thread = new Thread(this, "loopback");
+        thread.setDaemon(true); //The process lives as long as whoever started the cluster
+        thread.start();
+    }
+
+    void listen(int port, Consumer<Link> acceptor) throws IOException {
+        if (listeners.putIfAbsent(port, acceptor) != null){
+            throw new BindException("Port " + port + " is already bound on the loopback network");
+        }
+    }
+
+    void unlisten(int port){
+        listeners.remove(port);
+    }
+
+    //Connects to a listening port. The accepting side's Connection is created before this returns, like a completed TCP handshake.
+    Link dial(int port) throws IOException {
+        Consumer<Link> acceptor = listeners.get(port);
+        if (acceptor == null){
+            throw new ConnectException("Connection refused : nothing listens on loopback port " + port);
+        }
+        LoopbackLink dialed = new LoopbackLink(this);
+        LoopbackLink accepted = new LoopbackLink(this);
+        dialed.connect(accepted);
+        accepted.connect(dialed);
+        acceptor.accept(accepted);
+        return dialed;
+    }
+
+    int ephemeralPort(){
+        return nextEphemeralPort.getAndIncrement();
+    }
+
+    //Carries one write of the given link to its peer. Immediate here, a Simulator adds latency and loss.
+    void deliver(LoopbackLink from, Runnable delivery){
+        execute(delivery);
+    }
+
+    //Tells the peer of the given link that it closed, after everything it wrote. Immediate here too, the queue keeps the order.
+    void disconnect(LoopbackLink from, Runnable notification){
+        execute(notification);
+    }
+
+    void execute(Runnable task){
+        tasks.offer(task);
+        if (parked.compareAndSet(true, false)){
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run(){
+        while (true){
+            Runnable task = tasks.poll();
+            if (task == null){
+                parked.set(true);
+                //Re-check after publishing parked, a task offered in between unparks us or is seen here
+                if (tasks.isEmpty()){
+                    LockSupport.park(this);
+                }
+                parked.set(false);
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("[LoopbackNetwork] Delivery failed");
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+public class Mailbox implements Runnable {
+    //Single consumer event loop fed by a lock-free queue : any thread posts, one thread at a time runs the tasks, in order.
+    //With a thread of its own, posting never blocks or runs anything. Inline, the poster that finds the mailbox idle
+    //drains it on the spot and the others only enqueue, which is what a LoopbackNetwork or Simulator wants, everything
+    //there already happening on one thread.
+    //onIdle runs after every batch, ie. once the queue is empty, so work can be deferred until a burst is handled.
+    private Queue<Runnable> tasks;
+    private AtomicBoolean scheduled; //Inline : set while some poster is draining. Threaded : set while the loop is about to park or parked
+    private Runnable onIdle;
+    private Thread thread; //Null when inline
+    private volatile boolean running = true;
+
+    public Mailbox(String name, boolean threaded, Runnable onIdle){
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean(false);
+        this.onIdle = onIdle;
+        if (threaded){
+            thread = new Thread(this, name);
+            thread.setDaemon(true); //The process lives as long as its connections, System.exit ends it
+            thread.start();
+        }
+    }
+
+    public void post(Runnable task){
+        if (!running){
+            return;
+        }
+        tasks.offer(task);
+        if (thread != null){
+            if (scheduled.compareAndSet(true, false)){
+                LockSupport.unpark(thread);
+            }
+            return;
+        }
+        //Whoever finds the mailbox idle drains it, re-checking after letting go so a task offered in between isn't stranded
+        while (scheduled.compareAndSet(false, true)){
+            drain();
+            scheduled.set(false);
+            if (tasks.isEmpty()){
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void run(){
+        while (running){
+            if (tasks.isEmpty()){
+                scheduled.set(true);
+                //Re-check after publishing scheduled, a task offered in between unparks us or is seen here
+                if (tasks.isEmpty()){
+                    LockSupport.park(this);
+                }
+                scheduled.set(false);
+                continue;
+            }
+            drain();
+        }
+    }
+
+    private void drain(){
+        Runnable task;
+        while ((task = tasks.poll()) != null){
+            run(task);
+        }
+        if (onIdle != null){
+            run(onIdle);
+        }
+    }
+
+    private void run(Runnable task){
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("[Mailbox] Task failed");
+            e.printStackTrace();
+        }
+    }
+
+    //Drops whatever is still queued, once the owner is done
+    public void stop(){
+        running = false;
+        tasks.clear();
+        if (thread != null){
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMBean {
+    //Process wide traffic counters and phase latencies. Recording is always on and only costs a few adds,
+    //consensus.metrics publishes the MBean and prints a snapshot every metricsIntervalMillis and when a vote concludes.
+    public static final Metrics INSTANCE = new Metrics();
+
+    private final Traffic total = new Traffic("total");
+    private final Set<Traffic> connections = ConcurrentHashMap.newKeySet(); //Traffic of the connections still open
+
+    final Histogram joinToDetails = new Histogram("us"); //Participant : JOIN sent to DETAILS received
+    final Histogram optionsToFirstVote = new Histogram("us"); //Participant : VOTE_OPTIONS received to first peer vote, 0 if peers were ahead of us
+    final Histogram optionsToOutcome = new Histogram("us"); //Participant : VOTE_OPTIONS received to OUTCOME sent
+    final Histogram electionDuration = new Histogram("us"); //Coordinator : first VOTE_OPTIONS sent to decision, restarts included
+    final Histogram roundsToConvergence = new Histogram(""); //Participant : rounds before the outcome was sent
+    final Histogram roundMessagesSent = new Histogram("");
+    final Histogram roundBytesSent = new Histogram("B");
+    final Histogram roundMessagesReceived = new Histogram("");
+    final Histogram roundBytesReceived = new Histogram("B");
+
+    private String label;
+
+    private Metrics(){
+    }
+
+    //Messages and bytes over one connection. Every update is also added to the process totals.
+    class Traffic {
+        private volatile String name;
+        private final LongAdder messagesSent = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder messagesReceived = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+
+        private Traffic(String name){
+            this.name = name;
+        }
+
+        void sent(int bytes){
+            messagesSent.increment();
+            bytesSent.add(bytes);
+            if (this != total){
+                total.sent(bytes);
+            }
+        }
+
+        void received(int bytes){
+            messagesReceived.increment();
+            bytesReceived.add(bytes);
+            if (this != total){
+                total.received(bytes);
+            }
+        }
+
+        void rename(String name){
+            this.name = name;
+        }
+
+        void close(){
+            connections.remove(this);
+        }
+
+        @Override
+        public String toString(){
+            return name + " sent=" + messagesSent.sum() + "/" + bytesSent.sum() + "B received=" + messagesReceived.sum() + "/" + bytesReceived.sum() + "B";
+        }
+    }
+
+    Traffic open(String name){
+        Traffic traffic = new Traffic(name);
+        connections.add(traffic);
+        return traffic;
+    }
+
+    //Process totals at the start of a round, handed back to endRound. With several elections running at once
+    //their rounds overlap, so the per round figures then include the traffic of the other elections.
+    long[] startRound(){
+        return new long[]{total.messagesSent.sum(), total.bytesSent.sum(), total.messagesReceived.sum(), total.bytesReceived.sum()};
+    }
+
+    void endRound(long[] start){
+        roundMessagesSent.record(total.messagesSent.sum() - start[0]);
+        roundBytesSent.record(total.bytesSent.sum() - start[1]);
+        roundMessagesReceived.record(total.messagesReceived.sum() - start[2]);
+        roundBytesReceived.record(total.bytesReceived.sum() - start[3]);
+    }
+
+    //Publishes the MBean and starts the periodic dump, once per process. Does nothing unless consensus.metrics is set.
+    public static synchronized void start(String label){
+        if (!Settings.metrics || INSTANCE.label != null){
+            return;
+        }
+        INSTANCE.label = label;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("consensus:type=Metrics,name=" + ObjectName.quote(label)));
+        } catch (JMException e) {
+            System.err.println("Failed to register the metrics MBean");
+            e.printStackTrace();
+        }
+        if (Settings.metricsIntervalMillis > 0){
+            Thread dumper = new Thread(() -> {
+                while (true){
+                    try {
+                        Thread.sleep(Settings.metricsIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.out.println(INSTANCE.snapshot());
+                }
+            }, "metrics");
+            dumper.setDaemon(true);
+            dumper.start();
+        }
+    }
+
+    public static void report(){
+        if (Settings.metrics){
+            System.out.println(INSTANCE.snapshot());
+        }
+    }
+
+    @Override
+    public long getMessagesSent(){
+        return total.messagesSent.sum();
+    }
+
+    @Override
+    public long getBytesSent(){
+        return total.bytesSent.sum();
+    }
+
+    @Override
+    public long getMessagesReceived(){
+        return total.messagesReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived(){
+        return total.bytesReceived.sum();
+    }
+
+    @Override
+    public int getOpenConnections(){
+        return connections.size();
+    }
+
+    @Override
+    public String getJoinToDetails(){
+        return joinToDetails.toString();
+    }
+
+    @Override
+    public String getOptionsToFirstVote(){
+        return optionsToFirstVote.toString();
+    }
+
+    @Override
+    public String getOptionsToOutcome(){
+        return optionsToOutcome.toString();
+    }
+
+    @Override
+    public String getElectionDuration(){
+        return electionDuration.toString();
+    }
+
+    @Override
+    public String getRoundsToConvergence(){
+        return roundsToConvergence.toString();
+    }
+
+    @Override
+    public String getRoundTraffic(){
+        return "messagesSent[" + roundMessagesSent + "] bytesSent[" + roundBytesSent
+                + "] messagesReceived[" + roundMessagesReceived + "] bytesReceived[" + roundBytesReceived + "]";
+    }
+
+    @Override
+    public String snapshot(){
+        StringBuilder builder = new StringBuilder();
+        builder.append("[metrics] ").append(label).append('\n');
+        builder.append("  ").append(total.toString()).append('\n');
+        for (Traffic traffic : connections){
+            builder.append("    ").append(traffic.toString()).append('\n');
+        }
+        appendPhase(builder, "joinToDetails", joinToDetails);
+        appendPhase(builder, "optionsToFirstVote", optionsToFirstVote);
+        appendPhase(builder, "optionsToOutcome", optionsToOutcome);
+        appendPhase(builder, "electionDuration", electionDuration);
+        appendPhase(builder, "roundsToConvergence", roundsToConvergence);
+        builder.append("  roundTraffic ").append(getRoundTraffic());
+        return builder.toString();
+    }
+
+    private static void appendPhase(StringBuilder builder, String name, Histogram histogram){
+        if (histogram.getCount() > 0){
+            builder.append("  ").append(name).append(' ').append(histogram).append('\n');
+        }
+    }
+}
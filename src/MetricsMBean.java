@@ -0,0 +1,15 @@
+public interface MetricsMBean {
+    //Read-only view of Metrics, published under consensus:type=Metrics,name=<role port> when consensus.metrics is set
+    long getMessagesSent();
+    long getBytesSent();
+    long getMessagesReceived();
+    long getBytesReceived();
+    int getOpenConnections();
+    String getJoinToDetails();
+    String getOptionsToFirstVote();
+    String getOptionsToOutcome();
+    String getElectionDuration();
+    String getRoundsToConvergence();
+    String getRoundTraffic();
+    String snapshot();
+}
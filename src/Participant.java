@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.util.*;
+import java.util.function.IntConsumer;
 
 public class Participant {
     public static final boolean verbose = false;
@@ -8,30 +9,83 @@ public class Participant {
     //Initialisation members
     private int cPort; //Coordinator Port
     private int port;
-    private int timeout; // in ms
+    private int timeout; // in ms, how long a peer may stay silent or keep us waiting for its vote. 0 to wait forever
     private FailureCondition failureCondition;
 
     //Runtime members
     private ServerThread serverThread;
     private Connection coordinatorConnection; //Used to connect to coordinator
-    private ArrayList<Integer> ports;
+    private ArrayList<Integer> ports; //The other participants, or only our children in tree mode
+    private int parent; //Tree mode : where our subtree's votes go, the coordinator's port for the root. 0 in a full mesh
+    private int[] electorate; //Every participant's port, us included, sorted. Digests are bitsets over it
     private int expectedParticipants;
-    private String[] voteOptions;
     private ServerThread otherParticipantsThread;
-    private Map<Integer, Connection> connectionsToOtherParticipants;
+    private Map<Integer, Connection> connectionsToOtherParticipants; //One per peer, both ways : dialed if its port is higher than ours, accepted otherwise
     private List<Integer> remainingParticipants;
-    private String ownVote; //This will be a random element of voteOptions
-    private Voting voteTracker;
+    private String argVote; //Own vote given on the command line, used for the first round of every election
+    private Map<Integer, Ballot> ballots; //Elections in progress, by election id
+    private BitSet concludedElections; //Elections the coordinator has announced as decided, late votes for them are dropped
+    private boolean meshConnected = false; //Connections to the other participants are made for the first election and reused after
+    private int pendingDials; //Peers we are still dialing, every ballot's votes wait until it is back to 0
+    private List<Ballot> waitingForMesh; //Ballots whose options arrived while we were still dialing
+    private Random random; //Random votes, gossip peers and the peer skipped on failure. Seeded from Settings.seed when set, so runs can be replayed
+    private long joinSentAt; //System.nanoTime() of our JOIN, for the JOIN to DETAILS latency
+    private IntConsumer exit; //Called with the exit code when we stop, System.exit unless the cluster shares a JVM
+    private HashedWheelTimer timer; //Drives the failure detector and round timeouts, null without a timeout
+    private HashedWheelTimer.Timeout heartbeat; //Next failure detector check, scheduled once the mesh is up
+    private Map<Integer, Long> lastHeard; //Peer port to the timer time we last got anything from it, for peers not yet dropped
+    private Mailbox mailbox; //Everything below runs on it : connection readers and timers only post, so none of them contend for a lock
+    private List<Ballot> pendingRoundChecks; //Ballots that got votes in the batch the mailbox is draining
 
-    private enum ParticipantState {JOIN_COORDINATOR, SEND_OUTCOME, VOTE_RESTART, DONE}
+    private enum ParticipantState {JOIN_COORDINATOR, DONE}
     private ParticipantState currentState;
 
+    private enum BallotState {WAITING_FOR_OPTIONS, VOTING, SEND_OUTCOME, VOTE_RESTART}
+
+    //Our side of one election run by the coordinator
+    private static class Ballot {
+        private int election;
+        private String[] voteOptions;
+        private String ownVote; //This will be a random element of voteOptions
+        private Voting voteTracker;
+        private BallotState currentState;
+        private long optionsReceivedAt; //System.nanoTime() of the VOTE_OPTIONS this run of the ballot started with
+        private boolean peerVoteSeen;
+        private int rounds; //Rounds finished since the options were received
+        private long[] roundStart; //Metrics totals when the current round started
+        private HashedWheelTimer.Timeout roundTimeout; //Drops the peers whose vote hasn't arrived in time
+        private int epoch; //Restarts so far. Our votes and digests carry it, and those of another run are not counted in this one
+        private List<Token> earlyReports; //Votes and digests of a restart whose VOTE_OPTIONS we haven't got yet
+        private boolean roundCheckPending; //In pendingRoundChecks
+
+        Ballot(int election){
+            this.election = election;
+            this.voteTracker = new Voting();
+            this.currentState = BallotState.WAITING_FOR_OPTIONS;
+            this.earlyReports = new ArrayList<>();
+        }
+    }
+
     public Participant(String[] args){
+        this(args, System::exit);
+    }
+
+    public Participant(String[] args, IntConsumer exit){
+        this.exit = exit;
         parseArgs(args);
         this.ports = new ArrayList<>();
         this.connectionsToOtherParticipants = new HashMap<>();
         this.remainingParticipants = new ArrayList<>();
-        this.voteTracker = new Voting();
+        this.ballots = new HashMap<>();
+        this.concludedElections = new BitSet();
+        this.lastHeard = new HashMap<>();
+        this.timer = timeout > 0 ? HashedWheelTimer.shared() : null;
+        //Scrambled, as Randoms seeded with neighbouring values start out with nearly the same numbers, ie. the same vote for every port
+        this.random = new Random(((Settings.seed != null ? Settings.seed : System.currentTimeMillis()) + port) * 0x9E3779B97F4A7C15L);
+        this.pendingRoundChecks = new ArrayList<>();
+        this.waitingForMesh = new ArrayList<>();
+        //In a loopback cluster every delivery already comes from the one dispatcher thread, which also keeps a Simulator deterministic
+        this.mailbox = new Mailbox("participant " + port, !Settings.loopback, this::checkPendingRounds);
         start();
     }
 
@@ -41,9 +95,9 @@ public class Participant {
         this.timeout = Integer.parseInt(args[2]);
         this.failureCondition = getFailureCondition(Integer.parseInt(args[3]));
         if (args.length > 4){
-            this.ownVote = args[4];
+            this.argVote = args[4];
             if (minimalInfo)
-                System.out.println("Own vote is " + ownVote);
+                System.out.println("Own vote is " + argVote);
 
         }
 
@@ -65,6 +119,7 @@ public class Participant {
 
     private void start(){
         this.currentState = ParticipantState.JOIN_COORDINATOR;
+        Metrics.start("participant " + port);
         try {
             this.coordinatorConnection = new Connection(this.port, cPort, this::onData, this::onParticipantDisconnect);
         } catch (IOException e) {
@@ -74,7 +129,16 @@ public class Participant {
         sendJoin();
     }
 
-    private synchronized void onData(Token token){
+    //Connection callbacks, called on reader threads
+    private void onData(Token token){
+        mailbox.post(() -> handleToken(token));
+    }
+
+    private void onParticipantDisconnect(int port){
+        mailbox.post(() -> handleDisconnect(port));
+    }
+
+    private void handleToken(Token token){
         if (currentState == ParticipantState.DONE){
             if (minimalInfo)
                 System.out.println("Ignoring data from token of type " + token.name);
@@ -82,6 +146,7 @@ public class Participant {
         }
         if (verbose)
             System.out.println("++++ ON DATA ++++");
+        heard(token);
         if (token instanceof DetailsToken){
             onDetails((DetailsToken) token);
         } else if (token instanceof VoteOptionsToken){
@@ -90,12 +155,20 @@ public class Participant {
             onParticipantVote((VoteToken) token);
         } else if (token instanceof MultiVoteToken){
             onParticipantMultiVote((MultiVoteToken) token);
+        } else if (token instanceof OutcomeToken){
+            onElectionDecided((OutcomeToken) token);
+        } else if (token instanceof JoinToken){
+            onPeerJoin((JoinToken) token);
+        } else if (token instanceof HeartbeatToken){
+            //Only there to show the peer is alive, see heard
+        } else if (token instanceof DigestToken){
+            onDigest((DigestToken) token);
         } else {
             System.err.println("Unknown token : " + token.toString());
         }
     }
 
-    private synchronized void onParticipantDisconnect(int port){
+    private void handleDisconnect(int port){
         //TODO when a participant disconnects, we don't know if he sent his vote to anyone still alive.
         if (minimalInfo)
             System.out.println("Participant on port " + port + " has disconnected.");
@@ -108,28 +181,163 @@ public class Participant {
         }
         if (verbose)
             System.out.println("Should not be outputted if coordinator disconnected, as we should be shutdown");
+        if (!remainingParticipants.contains(port) && !connectionsToOtherParticipants.containsKey(port)){
+            //Already dropped, ie. suspected, and now its link reports the close
+            return;
+        }
         this.connectionsToOtherParticipants.remove(port);
         this.remainingParticipants.remove(Integer.valueOf(port));
-        checkRoundEnd();
+        this.lastHeard.remove(port);
+        for (Ballot ballot : new ArrayList<>(ballots.values())){
+            ballot.voteTracker.untrackKnowledge(port);
+            checkRoundEnd(ballot);
+        }
+    }
+
+    //Whatever a peer sends shows it is alive. Heartbeats only go out on connections that had nothing else to carry.
+    private void heard(Token token){
+        if (timer == null){
+            return;
+        }
+        int peer;
+        if (token instanceof VoteToken){
+            peer = ((VoteToken) token).getPort();
+        } else if (token instanceof MultiVoteToken){
+            peer = ((MultiVoteToken) token).getSourcePort();
+        } else if (token instanceof HeartbeatToken){
+            peer = ((HeartbeatToken) token).getPort();
+        } else if (token instanceof DigestToken){
+            peer = ((DigestToken) token).getSourcePort();
+        } else if (token instanceof JoinToken){
+            peer = ((JoinToken) token).getPort();
+        } else {
+            return;
+        }
+        if (lastHeard.containsKey(peer)){
+            lastHeard.put(peer, timer.now());
+        }
+    }
+
+    private void startFailureDetector(){
+        if (timer == null){
+            return;
+        }
+        long now = timer.now();
+        for (int peer : remainingParticipants){
+            lastHeard.put(peer, now);
+        }
+        scheduleCheck();
+    }
+
+    private void scheduleCheck(){
+        heartbeat = timer.newTimeout(() -> mailbox.post(this::checkPeers), Math.max(timeout / 3, HashedWheelTimer.TICK_MILLIS));
+    }
+
+    //Runs every third of the timeout : idle connections get a heartbeat, and a peer we haven't heard from
+    //for the whole timeout is suspected, even if its socket never closes
+    private void checkPeers(){
+        if (currentState == ParticipantState.DONE){
+            return;
+        }
+        HeartbeatToken heartbeatToken = new HeartbeatToken(port);
+        for (Connection connection : connectionsToOtherParticipants.values()){
+            connection.sendIfIdle(heartbeatToken);
+        }
+        long now = timer.now();
+        for (int peer : new ArrayList<>(lastHeard.keySet())){
+            Long heardAt = lastHeard.get(peer);
+            if (heardAt != null && now - heardAt > timeout){
+                suspect(peer, "nothing heard for " + (now - heardAt) + "ms");
+            }
+        }
+        if (currentState != ParticipantState.DONE){
+            scheduleCheck();
+        }
+    }
+
+    //A peer that stays connected but never votes would otherwise hold the first round up for good.
+    //Not in tree mode, where a child that is late may just be waiting on its own subtree : silent children are still suspected.
+    private void armRoundTimeout(Ballot ballot){
+        if (timer == null || parent != 0){
+            return;
+        }
+        if (ballot.roundTimeout != null){
+            ballot.roundTimeout.cancel();
+        }
+        int election = ballot.election;
+        ballot.roundTimeout = timer.newTimeout(() -> mailbox.post(() -> onRoundTimeout(election)), timeout);
+    }
+
+    private void onRoundTimeout(int election){
+        Ballot ballot = ballots.get(election);
+        if (currentState == ParticipantState.DONE || ballot == null || ballot.currentState == BallotState.SEND_OUTCOME){
+            return;
+        }
+        for (int peer : new ArrayList<>(remainingParticipants)){
+            if (!ballot.voteTracker.hasVoteOf(peer)){
+                suspect(peer, "no vote for election " + election + " after " + timeout + "ms");
+            }
+        }
+    }
+
+    //Treated like a disconnect : the peer is dropped from remainingParticipants and rounds stop waiting for it
+    private void suspect(int peer, String reason){
+        if (currentState == ParticipantState.DONE){
+            return;
+        }
+        System.out.println("Suspecting participant " + peer + ", " + reason);
+        Connection connection = connectionsToOtherParticipants.get(peer);
+        if (connection != null){
+            connection.stop();
+        }
+        handleDisconnect(peer);
     }
 
     private void onDetails(DetailsToken token){
+        Metrics.INSTANCE.joinToDetails.recordSince(joinSentAt);
         if (verbose)
             System.out.println("Other participants include : " + token.toString());
         for (int port : token.getPorts()){
             this.ports.add(port);
         }
+        this.parent = token.getParent();
         this.remainingParticipants.addAll(ports);
+        this.electorate = new int[ports.size() + 1];
+        for (int i = 0; i < ports.size(); i++){
+            electorate[i] = ports.get(i);
+        }
+        electorate[ports.size()] = port;
+        Arrays.sort(electorate);
+        //Listen before any VOTE_OPTIONS goes out, so peers that get theirs first can already connect to us.
+        //In a full mesh only the peers with a lower port connect to us, in tree mode only our children.
+        int accepted = parent == 0 ? (int) ports.stream().filter(peer -> peer < port).count() : ports.size();
+        if (accepted > 0){
+            listenForParticipants(accepted);
+        }
+    }
+
+    //Returns the ballot a token belongs to, creating it if peers are ahead of our VOTE_OPTIONS. Null if the election is over.
+    private Ballot getBallot(Token token){
+        if (concludedElections.get(token.getElection())){
+            return null;
+        }
+        return ballots.computeIfAbsent(token.getElection(), Ballot::new);
     }
 
     private void onVoteOptions(VoteOptionsToken token){
-        this.voteOptions = token.getOptions();
-        if (currentState == ParticipantState.SEND_OUTCOME){
-            currentState = ParticipantState.VOTE_RESTART;
-            voteRestart();
+        Ballot ballot = getBallot(token);
+        if (ballot == null){
+            return;
+        }
+        ballot.voteOptions = token.getOptions();
+        ballot.voteTracker.setOptions(ballot.voteOptions);
+        startMeasuring(ballot);
+        if (ballot.currentState == BallotState.SEND_OUTCOME){
+            ballot.currentState = BallotState.VOTE_RESTART;
+            voteRestart(ballot);
         } else {
-            displayVoteOptions();
-            this.vote();
+            displayVoteOptions(ballot);
+            this.vote(ballot);
         }
 
     }
@@ -137,44 +345,155 @@ public class Participant {
     private void onParticipantVote(VoteToken token){
         if (verbose)
             System.out.println("Vote received from " + token.getPort() + " (voted for " + token.getVote() + ")");
-        voteTracker.voteReceived();
-        voteTracker.castVote(token.getPort(), token.getVote());
-        checkRoundEnd();
+        Ballot ballot = getBallot(token);
+        if (ballot == null || !ofCurrentRun(ballot, token)){
+            return;
+        }
+        peerVoteReceived(ballot);
+        ballot.voteTracker.voteReceived();
+        ballot.voteTracker.castVote(token.getPort(), token.getVote());
+        if (Settings.gossipFanout > 0 && parent == 0){
+            gossip(ballot, token.getPort());
+        } else {
+            deferRoundCheck(ballot);
+        }
     }
 
     private void onParticipantMultiVote(MultiVoteToken token){
         if (verbose)
             System.out.println("Vote received from " + token.getSourcePort() + " (voted for " + token.getVotes().toString() + ")");
-        voteTracker.voteReceived();
+        Ballot ballot = getBallot(token);
+        if (ballot == null || !ofCurrentRun(ballot, token)){
+            return;
+        }
+        peerVoteReceived(ballot);
+        ballot.voteTracker.voteReceived();
         for (int port : token.getVotes().keySet()){
-            voteTracker.castMultiVote(token.getSourcePort(), port, token.getVotes().get(port));
+            ballot.voteTracker.castMultiVote(token.getSourcePort(), port, token.getVotes().get(port));
+        }
+        if (Settings.gossipFanout > 0 && parent == 0){
+            gossip(ballot, token.getSourcePort());
+        } else {
+            deferRoundCheck(ballot);
+        }
+    }
+
+    //Votes that arrive together are all counted before the round is checked, so a burst costs one checkRoundEnd
+    private void deferRoundCheck(Ballot ballot){
+        if (!ballot.roundCheckPending){
+            ballot.roundCheckPending = true;
+            pendingRoundChecks.add(ballot);
+        }
+    }
+
+    //Run by the mailbox whenever it has drained its queue
+    private void checkPendingRounds(){
+        if (pendingRoundChecks.isEmpty()){
+            return;
         }
-        checkRoundEnd();
+        List<Ballot> pending = new ArrayList<>(pendingRoundChecks);
+        pendingRoundChecks.clear();
+        for (Ballot ballot : pending){
+            ballot.roundCheckPending = false;
+            if (currentState != ParticipantState.DONE && ballots.get(ballot.election) == ballot){
+                checkRoundEnd(ballot);
+            }
+        }
+    }
+
+    //A vote or digest of an earlier run is dropped, its voters may have changed their vote since. One from a peer that
+    //restarted before us is kept and replayed once our own VOTE_OPTIONS for that run arrives.
+    private boolean ofCurrentRun(Ballot ballot, Token token){
+        if (token.getEpoch() > ballot.epoch){
+            ballot.earlyReports.add(token);
+        }
+        return token.getEpoch() == ballot.epoch;
+    }
+
+    private void stamp(Ballot ballot, Token token){
+        token.setElection(ballot.election);
+        token.setEpoch(ballot.epoch);
+    }
+
+    //Restarts the latency and round measurements, on the first VOTE_OPTIONS of an election and on every restart
+    private void startMeasuring(Ballot ballot){
+        ballot.optionsReceivedAt = System.nanoTime();
+        ballot.rounds = 0;
+        ballot.roundStart = Metrics.INSTANCE.startRound();
+        if (ballot.peerVoteSeen){
+            //Peers were ahead of us, their votes were already waiting
+            Metrics.INSTANCE.optionsToFirstVote.record(0);
+        }
+    }
+
+    private void peerVoteReceived(Ballot ballot){
+        if (!ballot.peerVoteSeen){
+            ballot.peerVoteSeen = true;
+            if (ballot.optionsReceivedAt != 0){
+                Metrics.INSTANCE.optionsToFirstVote.recordSince(ballot.optionsReceivedAt);
+            }
+        }
+    }
+
+    private void endRound(Ballot ballot){
+        ballot.rounds++;
+        Metrics.INSTANCE.endRound(ballot.roundStart);
+        ballot.roundStart = Metrics.INSTANCE.startRound();
     }
 
-    private void checkRoundEnd(){
+    //Sent by a long running coordinator once an election is decided for good
+    private void onElectionDecided(OutcomeToken token){
+        if (minimalInfo)
+            System.out.println("Election " + token.getElection() + " was decided : " + token.getOutcome());
+        Ballot ballot = ballots.remove(token.getElection());
+        if (ballot != null && ballot.roundTimeout != null){
+            ballot.roundTimeout.cancel();
+        }
+        concludedElections.set(token.getElection());
+    }
+
+    private void checkRoundEnd(Ballot ballot){
+        if (ballot.currentState == BallotState.WAITING_FOR_OPTIONS){
+            //Our own vote isn't cast yet, the round can't be over
+            return;
+        }
+        if (parent != 0){
+            checkSubtreeReported(ballot);
+            return;
+        }
+        if (!checkEarlyMajority(ballot)){
+            return;
+        }
+        Voting voteTracker = ballot.voteTracker;
         if (verbose)
             System.out.println("Checking if round is over...");
-        if (allVotesCast()){
+        if (allVotesCast(ballot)){
             //We have finished a round. Either move on to the next round, or if there are no new votes, resolve the outcome.
             if (verbose)
                 System.out.println("All votes have been cast");
             if (voteTracker.hasNewVotes()){
-                if (allParticipantsKnowledgeable()){
+                if (allParticipantsKnowledgeable(ballot)){
                     if (verbose)
                         System.out.println("There are new votes, but everyone knows about them");
-                    resolveOutcome();
+                    //Checks are deferred to the end of a burst, so a peer may have ended its round before the votes that made
+                    //everyone knowledgeable here. It waits for a word from us to end its next one, so our votes still go out.
+                    nextRound(ballot);
+                    resolveOutcome(ballot);
                 } else {
                     if (verbose)
                         System.out.println("There are still new votes and not everyone knows about them - moving on to next round");
-                    nextRound();
+                    nextRound(ballot);
                 }
 
+            } else if (Settings.digest && voteTracker.isMissingKnownVotes()){
+                //A peer's digest listed votes we don't have, it is sending them now that it has ours
+                if (verbose)
+                    System.out.println("Waiting for the votes peers' digests showed we lack");
             } else {
                 //Move on to outcome determination
                 if (verbose)
                     System.out.println("No new votes, moving on to resolution of outcome.");
-                resolveOutcome();
+                resolveOutcome(ballot);
             }
         } else {
             if (verbose)
@@ -182,128 +501,431 @@ public class Participant {
         }
     }
 
-    private boolean allParticipantsKnowledgeable(){
-        if (verbose)
-            System.out.println("Remaining participants : " + remainingParticipants.toString());
-        for (int port : remainingParticipants){
-            int knowledgeSize = voteTracker.getKnowledgeSize(port);
-            if (verbose)
-                System.out.println("Knowledge size of " + port + " is " + knowledgeSize);
-            if (knowledgeSize < ports.size()){
-                return false;
+    //Tree mode replaces rounds : each child reports once, with every vote of its subtree (its own included),
+    //then the votes of our whole subtree go to our parent in one message. The root sends the outcome instead.
+    private void checkSubtreeReported(Ballot ballot){
+        if (ballot.currentState == BallotState.SEND_OUTCOME){
+            return;
+        }
+        for (int child : remainingParticipants){
+            if (!ballot.voteTracker.hasVoteOf(child)){
+                return;
             }
         }
-        return true;
+        if (failureCondition == FailureCondition.DURING_STEP_4){
+            //Our subtree's votes are lost with us
+            fail();
+            return;
+        }
+        if (parent == cPort){
+            sendOutcome(ballot);
+        } else {
+            MultiVoteToken report = new MultiVoteToken(ballot.voteTracker.getVotes());
+            stamp(ballot, report);
+            Connection connection = connectionsToOtherParticipants.get(parent);
+            if (connection != null){
+                connection.send(report);
+            }
+            outcomeSent(ballot);
+        }
+        if (failureCondition == FailureCondition.AFTER_STEP_4){
+            fail();
+        }
     }
 
-    private void vote(){
+    //Gossip mode replaces rounds : whatever we just learnt goes to gossipFanout random peers, the sender gets back
+    //whatever it hasn't shown us it knows, and we decide as soon as we know every vote.
+    private void gossip(Ballot ballot, int sourcePort){
+        if (ballot.currentState == BallotState.WAITING_FOR_OPTIONS){
+            //Everything we know is pushed out when we cast our own vote
+            return;
+        }
+        Voting voteTracker = ballot.voteTracker;
+        if (voteTracker.hasNewVotes()){
+            for (int peer : randomPeers(Settings.gossipFanout, sourcePort)){
+                sendVotesUnknownTo(ballot, peer);
+            }
+            voteTracker.nextRound();
+            endRound(ballot);
+        }
+        if (connectionsToOtherParticipants.containsKey(sourcePort)){
+            sendVotesUnknownTo(ballot, sourcePort);
+        }
+        if (!checkEarlyMajority(ballot)){
+            return;
+        }
+        if (allVotesCast(ballot)){
+            resolveOutcome(ballot);
+        }
+    }
+
+    private void sendVotesUnknownTo(Ballot ballot, int peer){
+        Map<Integer, String> votes = ballot.voteTracker.takeVotesUnknownTo(peer);
+        if (votes.isEmpty()){
+            return;
+        }
+        MultiVoteToken token = new MultiVoteToken(votes);
+        stamp(ballot, token);
+        connectionsToOtherParticipants.get(peer).send(token);
+    }
+
+    //Up to count distinct connected peers, never the excluded one
+    private List<Integer> randomPeers(int count, int excluded){
+        List<Integer> peers = new ArrayList<>(connectionsToOtherParticipants.keySet());
+        peers.remove(Integer.valueOf(excluded));
+        int picked = Math.min(count, peers.size());
+        for (int i = 0; i < picked; i++){
+            Collections.swap(peers, i, i + random.nextInt(peers.size() - i));
+        }
+        return peers.subList(0, picked);
+    }
+
+    private boolean allParticipantsKnowledgeable(Ballot ballot){
+        if (verbose)
+            System.out.println("Remaining participants : " + remainingParticipants.toString());
+        return ballot.voteTracker.allKnowledgeable();
+    }
+
+    private void vote(Ballot ballot){
         if (minimalInfo)
             System.out.println("VOTE STARTING");
-        castSelfVote();
-        listenForParticipants();
-        connectToOtherParticipants();
-        sendVoteToParticipants();
+        castSelfVote(ballot);
+        if (!meshConnected){
+            meshConnected = true;
+            if (parent != 0){
+                connectToParent();
+            } else {
+                connectToOtherParticipants();
+            }
+        }
+        if (pendingDials > 0){
+            //Sent once every peer we dial is connected or given up on, see onDialed
+            waitingForMesh.add(ballot);
+            return;
+        }
+        startVoting(ballot);
     }
 
-    private void voteRestart(){
+    private void startVoting(Ballot ballot){
+        ballot.voteTracker.trackKnowledge(remainingParticipants, ports.size());
+        ballot.currentState = BallotState.VOTING;
+        armRoundTimeout(ballot);
+        if (parent != 0){
+            //Children may have reported before our VOTE_OPTIONS arrived
+            checkRoundEnd(ballot);
+            return;
+        }
+        if (Settings.gossipFanout > 0 && failureCondition != FailureCondition.DURING_STEP_4){
+            gossip(ballot, -1);
+            return;
+        }
+        sendVoteToParticipants(ballot);
+        //Peers that already had the mesh may have sent us their votes before our VOTE_OPTIONS arrived
+        checkRoundEnd(ballot);
+    }
+
+    private void voteRestart(Ballot ballot){
         System.out.println("VOTE RESTARTING");
-        displayVoteOptions();
-        voteTracker = new Voting();
-        castSelfVote();
-        sendVoteToParticipants();
+        displayVoteOptions(ballot);
+        ballot.epoch++;
+        ballot.voteTracker = new Voting();
+        ballot.voteTracker.setOptions(ballot.voteOptions);
+        ballot.voteTracker.trackKnowledge(remainingParticipants, ports.size());
+        castSelfVote(ballot);
+        armRoundTimeout(ballot);
+        //Peers that restarted before us may already have sent their votes for this run
+        List<Token> earlyReports = ballot.earlyReports;
+        ballot.earlyReports = new ArrayList<>();
+        for (Token report : earlyReports){
+            if (report instanceof VoteToken){
+                onParticipantVote((VoteToken) report);
+            } else if (report instanceof MultiVoteToken){
+                onParticipantMultiVote((MultiVoteToken) report);
+            } else {
+                onDigest((DigestToken) report);
+            }
+        }
+        if (parent != 0){
+            checkRoundEnd(ballot);
+            return;
+        }
+        if (Settings.gossipFanout > 0){
+            gossip(ballot, -1);
+            return;
+        }
+        sendVoteToParticipants(ballot);
     }
 
-    private void nextRound(){
+    private void nextRound(Ballot ballot){
         if (verbose)
             System.out.println("== NEW ROUND ==");
-        sendNewVotes();
-        voteTracker.nextRound();
+        if (Settings.digest){
+            if (ballot.currentState != BallotState.SEND_OUTCOME){
+                sendDigest(ballot);
+            }
+        } else {
+            sendNewVotes(ballot);
+        }
+        ballot.voteTracker.nextRound();
+        endRound(ballot);
     }
 
-    private void sendNewVotes(){
-        MultiVoteToken newVotes = new MultiVoteToken(voteTracker.getNewVotes());
+    private void sendNewVotes(Ballot ballot){
+        MultiVoteToken newVotes = new MultiVoteToken(ballot.voteTracker.getNewVotes());
+        stamp(ballot, newVotes);
         if (verbose)
             System.out.println("Sending multivote token " + newVotes.getVotes().toString());
         sendTokenToParticipants(newVotes);
     }
 
-    private void resolveOutcome(){
+    //Anti-entropy : rather than every new vote to every peer, a bitset of the voters we know goes out. Each peer answers
+    //with the votes it has that we lack, usually none once the first round is over.
+    private void sendDigest(Ballot ballot){
+        sendTokenToParticipants(digestOf(ballot));
+    }
+
+    private DigestToken digestOf(Ballot ballot){
+        BitSet known = new BitSet(electorate.length);
+        for (int i = 0; i < electorate.length; i++){
+            if (ballot.voteTracker.hasVoteOf(electorate[i])){
+                known.set(i);
+            }
+        }
+        DigestToken digest = new DigestToken(known);
+        stamp(ballot, digest);
+        return digest;
+    }
+
+    private void onDigest(DigestToken token){
+        Ballot ballot = getBallot(token);
+        if (ballot == null || !ofCurrentRun(ballot, token)){
+            return;
+        }
+        int peer = token.getSourcePort();
+        BitSet known = token.getKnown();
+        boolean lacking = false;
+        for (int i = known.nextSetBit(0); i >= 0 && i < electorate.length; i = known.nextSetBit(i + 1)){
+            lacking |= !ballot.voteTracker.hasVoteOf(electorate[i]);
+            ballot.voteTracker.learnKnownTo(peer, electorate[i]);
+        }
+        Connection connection = connectionsToOtherParticipants.get(peer);
+        if (connection != null && ballot.currentState != BallotState.WAITING_FOR_OPTIONS){
+            sendVotesUnknownTo(ballot, peer);
+            //Once our outcome is sent we no longer pull : the peer may still be counting and waits for what it lacks, not for us
+            if (lacking && ballot.currentState != BallotState.SEND_OUTCOME){
+                //It may have learnt them after our own digest, so ask again : our digest is the pull
+                connection.send(digestOf(ballot));
+            }
+        }
+        deferRoundCheck(ballot);
+    }
+
+    //Early decision mode : an option backed by more than half of every participant (us included) wins whatever votes are
+    //still to come, so the outcome goes out now with those voters as proof. We keep relaying votes for peers still counting.
+    //Every participant is the electorate DETAILS gave us, not the peers we managed to dial, so a failed dial can't lower the bar.
+    //Returns false if we failed instead, there is nothing left to do then.
+    private boolean checkEarlyMajority(Ballot ballot){
+        if (!Settings.earlyDecision || ballot.currentState == BallotState.SEND_OUTCOME){
+            return true;
+        }
+        String majority = ballot.voteTracker.getMajorityOf(electorate.length);
+        if (majority == null){
+            return true;
+        }
+        if (minimalInfo)
+            System.out.println("Early majority for " + majority + " with " + ballot.voteTracker.getVoteCount() + " votes known");
+        if (failureCondition == FailureCondition.AFTER_STEP_4){
+            fail();
+            return false;
+        }
+        OutcomeToken outcome = new OutcomeToken(majority, ballot.voteTracker.getVotersFor(majority));
+        outcome.setEarly(true);
+        sendOutcome(ballot, outcome);
+        return true;
+    }
+
+    private void resolveOutcome(Ballot ballot){
         //TODO use voting to resolve, then send conclusion to coordinator
-        voteTracker.castVote(port, ownVote);
-        if (currentState != ParticipantState.SEND_OUTCOME){
+        ballot.voteTracker.castVote(port, ballot.ownVote);
+        if (ballot.currentState != BallotState.SEND_OUTCOME){
             if (failureCondition == FailureCondition.AFTER_STEP_4){
                 fail();
             } else {
-                sendOutcome();
+                sendOutcome(ballot);
             }
         }
     }
 
-    private void listenForParticipants(){
-        this.otherParticipantsThread = new ServerThread(port, ports.size(), this::onData, this::onParticipantDisconnect);
-        new Thread(otherParticipantsThread).start();
+    private void listenForParticipants(int connections){
+        this.otherParticipantsThread = new ServerThread(port, connections, this::onData, this::onParticipantDisconnect);
+        Threads.start(otherParticipantsThread);
     }
 
+    //Only dials the peers with a higher port, the others dial us and their connection is adopted in onPeerJoin.
+    //They are all dialed at once, onDialed counting them down.
     private void connectToOtherParticipants(){
-        Iterator<Integer> it = ports.iterator();
-        while (it.hasNext()){
-            int port = it.next();
-            Connection connection = connectToParticipant(port);
-            if (connection != null){
-                connectionsToOtherParticipants.put(port, connection);
-                if (minimalInfo)
-                    System.out.println("Connected to " + port + ".");
-            } else {
-                if (minimalInfo)
-                    System.err.println("Failed to connect to port " + port + ". Removing that participant from the list of known ports.");
-                it.remove();
-                if (verbose)
-                    System.out.println("Remaining ports : " + ports.toString());
+        List<Integer> higher = new ArrayList<>();
+        for (int port : ports){
+            if (port > this.port){
+                higher.add(port);
             }
+        }
+        connectToParticipants(higher);
+    }
 
+    private void connectToParticipants(List<Integer> peers){
+        pendingDials = peers.size();
+        if (pendingDials == 0){
+            startFailureDetector();
+            return;
+        }
+        for (int peer : peers){
+            if (minimalInfo)
+                System.out.println("Connecting to port " + peer);
+            Dialer.dial(peer, Settings.connectTimeoutMillis, random, link -> mailbox.post(() -> onDialed(peer, link)));
         }
     }
 
-    private Connection connectToParticipant(int port){
-        try {
+    //Readiness barrier : once the last dial is settled, the reachable set is known and the waiting ballots' votes go out
+    private void onDialed(int peer, Link link){
+        if (link != null){
+            Connection connection = new Connection(this.port, peer, link, this::onData, this::onParticipantDisconnect);
+            //Tells the peer who we are, so it sends to us over this connection too. It is also where the binary format is offered.
+            connection.send(new JoinToken(this.port, Settings.binary));
+            connectionsToOtherParticipants.put(peer, connection);
             if (minimalInfo)
-                System.out.println("Connecting to port " + port);
-            return new Connection(this.port, port, this::onData, this::onParticipantDisconnect);
-        } catch (IOException e) {
-            return null;
+                System.out.println("Connected to " + peer + ".");
+        } else if (peer == parent){
+            System.err.println("Failed to connect to our parent " + parent + ", our subtree's votes won't be counted");
+        } else {
+            if (minimalInfo)
+                System.err.println("Failed to connect to port " + peer + ". Removing that participant from the list of known ports.");
+            ports.remove(Integer.valueOf(peer));
+            if (verbose)
+                System.out.println("Remaining ports : " + ports.toString());
+        }
+        if (--pendingDials > 0){
+            return;
+        }
+        startFailureDetector();
+        List<Ballot> waiting = new ArrayList<>(waitingForMesh);
+        waitingForMesh.clear();
+        for (Ballot ballot : waiting){
+            if (ballots.get(ballot.election) == ballot){
+                startVoting(ballot);
+            }
+        }
+    }
+
+    //A peer with a lower port dialed us, from now on its connection is the one we share with it
+    private void onPeerJoin(JoinToken token){
+        if (parent != 0){
+            //Tree mode : a child, which only ever reports to us
+            return;
+        }
+        int peer = token.getPort();
+        connectionsToOtherParticipants.put(peer, token.getConnection());
+        if (minimalInfo)
+            System.out.println("Connected to " + peer + " (it dialed us).");
+        //It may have dialed after we voted, so whatever we broadcast until now missed it
+        for (Ballot ballot : ballots.values()){
+            catchUp(ballot, peer);
+        }
+    }
+
+    private void catchUp(Ballot ballot, int peer){
+        if (ballot.ownVote == null || ballot.currentState == BallotState.WAITING_FOR_OPTIONS || failureCondition == FailureCondition.DURING_STEP_4){
+            return;
+        }
+        if (Settings.gossipFanout > 0){
+            sendVotesUnknownTo(ballot, peer);
+            return;
+        }
+        Connection connection = connectionsToOtherParticipants.get(peer);
+        VoteToken vote = new VoteToken(port, ballot.ownVote);
+        stamp(ballot, vote);
+        connection.send(vote);
+        if (ballot.rounds > 0){
+            //Our relays of the rounds it missed, so it sees everything we know
+            MultiVoteToken known = new MultiVoteToken(ballot.voteTracker.getVotes());
+            stamp(ballot, known);
+            connection.send(known);
+        }
+    }
+
+    //Tree mode : our only outgoing connection, unless we are the root and report to the coordinator
+    private void connectToParent(){
+        connectToParticipants(parent == cPort ? Collections.emptyList() : Collections.singletonList(parent));
+    }
+
+    //A batched ballot gets one answer per question, in order, ie. A|Y
+    private void castSelfVote(Ballot ballot){
+        StringBuilder vote = new StringBuilder();
+        for (String[] options : Voting.splitQuestions(ballot.voteOptions)){
+            if (vote.length() > 0){
+                vote.append(Voting.ANSWER_SEPARATOR);
+            }
+            vote.append(chooseVote(ballot, options));
         }
+        ballot.ownVote = vote.toString();
+        System.out.println("My vote (" + port + ") is " + ballot.ownVote);
+        ballot.voteTracker.castVote(this.port, ballot.ownVote);
     }
 
-    private void castSelfVote(){
-        if (this.ownVote != null && currentState != ParticipantState.VOTE_RESTART){
+    private String chooseVote(Ballot ballot, String[] options){
+        String vote;
+        //With several questions, the vote given as arg only answers the one it is an option of
+        if (this.argVote != null && ballot.currentState != BallotState.VOTE_RESTART && isOption(argVote, options)){
             if (verbose)
                 System.out.println("Own vote was given as arg, not casting it");
+            vote = argVote;
         } else {
-            Random r = new Random(System.currentTimeMillis() + this.port);
-            this.ownVote = voteOptions[r.nextInt(voteOptions.length)];
+            vote = options[random.nextInt(options.length)];
+        }
+        if (Settings.rankedChoice && vote.indexOf(Voting.RANK_SEPARATOR) < 0){
+            vote = rankAfter(vote, options);
+        }
+        return vote;
+    }
+
+    private static boolean isOption(String vote, String[] options){
+        int separator = vote.indexOf(Voting.RANK_SEPARATOR);
+        String first = separator < 0 ? vote : vote.substring(0, separator);
+        return Arrays.asList(options).contains(first);
+    }
+
+    //Ranked vote with the given first choice, then the other options in random order, ie. B>C>A
+    private String rankAfter(String first, String[] options){
+        List<String> rest = new ArrayList<>(Arrays.asList(options));
+        rest.remove(first);
+        Collections.shuffle(rest, random);
+        StringBuilder ranking = new StringBuilder(first);
+        for (String option : rest){
+            ranking.append(Voting.RANK_SEPARATOR).append(option);
         }
-        System.out.println("My vote (" + port + ") is " + this.ownVote);
-        voteTracker.castVote(this.port, this.ownVote);
+        return ranking.toString();
     }
 
-    private void sendVoteToParticipants(){
-        Token voteToken = new VoteToken(this.port, ownVote);
+    private void sendVoteToParticipants(Ballot ballot){
+        Token voteToken = new VoteToken(this.port, ballot.ownVote);
+        stamp(ballot, voteToken);
         if (failureCondition == FailureCondition.DURING_STEP_4){
             List<Integer> ports = new ArrayList<>(connectionsToOtherParticipants.keySet());
-            Random r = new Random(System.currentTimeMillis() + this.port);
             int randIndex;
             if (ports.size() < 1){
                 fail();
                 return;
             } else {
-                randIndex = r.nextInt(ports.size());
+                randIndex = random.nextInt(ports.size());
             }
             ports.remove(randIndex);
             if (verbose)
                 System.out.println("Sending vote to " + ports.toString());
+            List<Connection> connections = new ArrayList<>();
             for (int port : ports){
-                connectionsToOtherParticipants.get(port).send(voteToken);
+                connections.add(connectionsToOtherParticipants.get(port));
             }
+            Connection.broadcast(connections, voteToken);
             fail();
         } else {
             sendTokenToParticipants(voteToken);
@@ -312,37 +934,64 @@ public class Participant {
     }
 
     private void sendTokenToParticipants(Token token){
-        for (int port : this.connectionsToOtherParticipants.keySet()){
-            if (verbose)
-                System.out.println("Sending token " + token.name + " to " + port);
-            this.connectionsToOtherParticipants.get(port).send(token);
-        }
+        if (verbose)
+            System.out.println("Sending token " + token.name + " to " + connectionsToOtherParticipants.keySet());
+        Connection.broadcast(connectionsToOtherParticipants.values(), token);
     }
 
-    private boolean allVotesCast(){
+    private boolean allVotesCast(Ballot ballot){
         if (verbose){
-            System.out.println("voteTracker.getVoteCount() = " + voteTracker.getVoteCount());
+            System.out.println("voteTracker.getVoteCount() = " + ballot.voteTracker.getVoteCount());
             System.out.println("ports.size() = " + ports.size());
         }
-        return voteTracker.getVoteCount() - 1 >= ports.size();
+        if (ballot.voteTracker.getVoteCount() - 1 >= ports.size()){
+            return true;
+        }
+        //Peers that disconnected or were suspected are no longer waited for
+        for (int peer : remainingParticipants){
+            if (!ballot.voteTracker.hasVoteOf(peer)){
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void displayVoteOptions(){
+    private void displayVoteOptions(Ballot ballot){
         System.out.print("Voting options include : ");
-        for (String option : voteOptions){
+        for (String option : ballot.voteOptions){
             System.out.print(option + " ");
         }
         System.out.println();
     }
 
-    private void sendOutcome(){
-        List<String> winningVotes = voteTracker.getWinningVotes();
+    private void sendOutcome(Ballot ballot){
+        List<String> winningVotes = ballot.voteTracker.getWinningVotes();
+        OutcomeToken outcome;
         if (winningVotes.size() == 1){
-            coordinatorConnection.send(new OutcomeToken(winningVotes.get(0), voteTracker.getParticipants().stream().mapToInt(Integer::intValue).toArray()));
+            outcome = new OutcomeToken(winningVotes.get(0), ballot.voteTracker.getParticipants().stream().mapToInt(Integer::intValue).toArray());
         } else {
-            coordinatorConnection.send(new OutcomeToken(null, winningVotes));
+            outcome = new OutcomeToken(null, winningVotes);
+        }
+        sendOutcome(ballot, outcome);
+    }
+
+    private void sendOutcome(Ballot ballot, OutcomeToken outcome){
+        outcome.setElection(ballot.election);
+        coordinatorConnection.send(outcome);
+        outcomeSent(ballot);
+    }
+
+    //Our part of the ballot is over, whether we sent the outcome or, in tree mode, reported to our parent
+    private void outcomeSent(Ballot ballot){
+        ballot.currentState = BallotState.SEND_OUTCOME;
+        if (ballot.roundTimeout != null){
+            ballot.roundTimeout.cancel();
         }
-        currentState = ParticipantState.SEND_OUTCOME;
+        endRound(ballot);
+        Metrics.INSTANCE.roundsToConvergence.record(ballot.rounds);
+        Metrics.INSTANCE.optionsToOutcome.recordSince(ballot.optionsReceivedAt);
+        ProcessStats.report("participant " + port);
+        Metrics.report();
         //TODO only shutdown when coordinator decides to, ie when connection with coordinator is closed
     }
 
@@ -352,20 +1001,47 @@ public class Participant {
         for (int port : connectionsToOtherParticipants.keySet()){
             connectionsToOtherParticipants.get(port).stop();
         }
-        System.exit(-1);
+        stopListening();
+        stopTimers();
+        mailbox.stop();
+        exit.accept(-1);
     }
 
     private void fail(){
         System.out.println("We are in failure condition : " + this.failureCondition + " -> fail triggered");
         connectionsToOtherParticipants.values().forEach(Connection::stop);
-        System.exit(-1);
+        coordinatorConnection.stop(); //What the coordinator would see when the process dies
+        stopListening();
+        stopTimers();
+        mailbox.stop();
+        currentState = ParticipantState.DONE;
+        exit.accept(-1);
+    }
+
+    private void stopListening(){
+        if (otherParticipantsThread != null){
+            otherParticipantsThread.stop();
+        }
+    }
+
+    private void stopTimers(){
+        if (heartbeat != null){
+            heartbeat.cancel();
+        }
+        for (Ballot ballot : ballots.values()){
+            if (ballot.roundTimeout != null){
+                ballot.roundTimeout.cancel();
+            }
+        }
     }
 
     private void sendJoin(){
-        coordinatorConnection.send(new JoinToken(this.port));
+        joinSentAt = System.nanoTime();
+        coordinatorConnection.send(new JoinToken(this.port, Settings.binary));
     }
 
     public static void main(String[] args){
         Participant participant = new Participant(args);
+        Threads.keepAlive();
     }
 }
@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+public class PortIndex {
+    //Assigns dense indices 0, 1, 2... to ports in the order they are first seen, without boxing.
+    //Open addressing with linear probing; a slot holds port + 1 so that 0 can mean empty.
+    private int[] slots;
+    private int[] slotIndices;
+    private int[] ports; //Index to port
+    private int size;
+
+    public PortIndex(){
+        this(16);
+    }
+
+    public PortIndex(int expectedPorts){
+        int capacity = Integer.highestOneBit(Math.max(expectedPorts, 8) * 2 - 1) << 1;
+        this.slots = new int[capacity];
+        this.slotIndices = new int[capacity];
+        this.ports = new int[Math.max(expectedPorts, 8)];
+        this.size = 0;
+    }
+
+    //Returns the index of the port, or -1 if it has never been added
+    public int indexOf(int port){
+        int mask = slots.length - 1;
+        for (int slot = hash(port) & mask; slots[slot] != 0; slot = (slot + 1) & mask){
+            if (slots[slot] == port + 1){
+                return slotIndices[slot];
+            }
+        }
+        return -1;
+    }
+
+    //Returns the index of the port, assigning the next free index if it is new
+    public int add(int port){
+        int index = indexOf(port);
+        if (index >= 0){
+            return index;
+        }
+        if ((size + 1) * 2 > slots.length){
+            rehash(slots.length * 2);
+        }
+        if (size == ports.length){
+            ports = Arrays.copyOf(ports, size * 2);
+        }
+        index = size++;
+        ports[index] = port;
+        insert(port, index);
+        return index;
+    }
+
+    public int portAt(int index){
+        return ports[index];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    private void insert(int port, int index){
+        int mask = slots.length - 1;
+        int slot = hash(port) & mask;
+        while (slots[slot] != 0){
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = port + 1;
+        slotIndices[slot] = index;
+    }
+
+    private void rehash(int capacity){
+        slots = new int[capacity];
+        slotIndices = new int[capacity];
+        for (int i = 0; i < size; i++){
+            insert(ports[i], i);
+        }
+    }
+
+    private static int hash(int port){
+        int h = port * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
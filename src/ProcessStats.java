@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class ProcessStats {
+    //Cheap snapshot of thread count and resident set size, used to compare the threading modes
+
+    public static void report(String label){
+        if (!Settings.stats){
+            return;
+        }
+        System.out.println("[stats] " + label
+                + " mode=" + (Settings.nio ? "nio" : Settings.virtualThreads ? "virtual" : "platform")
+                + " platformThreads=" + ManagementFactory.getThreadMXBean().getThreadCount()
+                + " rssKb=" + residentSetKb());
+    }
+
+    //Reads VmRSS from /proc, returns -1 where it is not available (ie. not on Linux)
+    public static long residentSetKb(){
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))){
+                if (line.startsWith("VmRSS:")){
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+}
@@ -1,12 +1,17 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.HashMap;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ServerThread implements Runnable {
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel; //Used instead of serverSocket when running on the event loop
+    private LoopbackNetwork loopback; //Used instead of either when the whole cluster shares one JVM
     private int port;
     private int maxConnections;
     private Map<Integer, Connection> connections; //Map from port to connection
@@ -18,17 +23,35 @@ public class ServerThread implements Runnable {
         this.maxConnections = maxConnections;
         this.clientMessageCallback = clientMessageCallback;
         this.socketDisconnectCallback = socketDisconnectCallback;
+        this.connections = new ConcurrentHashMap<>();
         try {
             System.out.println("Creating server socket on port " + port);
-            this.serverSocket = new ServerSocket(port);
+            if (Settings.loopback){
+                this.loopback = LoopbackNetwork.shared();
+                this.loopback.listen(port, this::onLoopbackAccept);
+            } else if (Settings.nio){
+                this.serverChannel = ServerSocketChannel.open();
+                this.serverChannel.bind(new InetSocketAddress(port));
+            } else {
+                this.serverSocket = new ServerSocket(port);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        this.connections = new HashMap<>();
     }
 
     @Override
     public void run() {
+        if (this.loopback != null){
+            //Accepted as they are dialed, nothing to block on here
+            return;
+        }
+        if (this.serverChannel != null){
+            //Accepts are handled by the event loop, nothing to block on here
+            EventLoop loop = EventLoop.shared();
+            loop.register(serverChannel, SelectionKey.OP_ACCEPT, key -> onAcceptable(loop));
+            return;
+        }
         if (this.serverSocket == null){
             return;
         }
@@ -37,20 +60,46 @@ public class ServerThread implements Runnable {
                 Socket client = serverSocket.accept();
                 connections.put(client.getPort(), new Connection(client, port, clientMessageCallback, socketDisconnectCallback));
             } catch (IOException e) {
-
+                if (serverSocket.isClosed()){
+                    return;
+                }
                 System.err.println("[ServerThread] Connection to client failed");
                 e.printStackTrace();
             }
         }
     }
 
+    private void onAcceptable(EventLoop loop) throws IOException {
+        SocketChannel client;
+        while (connections.size() < maxConnections && (client = serverChannel.accept()) != null){
+            int clientPort = ((InetSocketAddress) client.getRemoteAddress()).getPort();
+            connections.put(clientPort, new Connection(new ChannelLink(client, loop), port, clientMessageCallback, socketDisconnectCallback));
+        }
+        if (connections.size() >= maxConnections){
+            serverChannel.keyFor(loop.selector()).cancel();
+        }
+    }
+
+    private void onLoopbackAccept(Link link){
+        connections.put(loopback.ephemeralPort(), new Connection(link, port, clientMessageCallback, socketDisconnectCallback));
+        if (connections.size() >= maxConnections){
+            loopback.unlisten(port);
+        }
+    }
+
     public void sendToAll(Token token){
-        this.connections.values().forEach(connection -> connection.send(token));
+        Connection.broadcast(connections.values(), token);
     }
 
     public void stop(){
         try {
-            serverSocket.close();
+            if (loopback != null){
+                loopback.unlisten(port);
+            } else if (serverChannel != null){
+                serverChannel.close();
+            } else {
+                serverSocket.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,21 @@
+public class Settings {
+    //Startup switches, read from system properties (ie. java -Dconsensus.nio=true Participant ...)
+    public static boolean nio = Boolean.getBoolean("consensus.nio"); //Run every connection on the shared selector loop instead of a thread per connection
+    public static boolean loopback = Boolean.getBoolean("consensus.loopback"); //Connect through the in-memory LoopbackNetwork instead of sockets, for clusters inside one JVM
+    public static boolean virtualThreads = Boolean.getBoolean("consensus.virtualThreads"); //Run reader and accept loops on virtual threads (JDK 21+)
+    public static boolean binary = Boolean.getBoolean("consensus.binary"); //Offer the binary wire format when joining, falls back to text with older peers
+    public static boolean longRunning = Boolean.getBoolean("consensus.longRunning"); //Coordinator stays up after a decision and reads new elections from stdin
+    public static int gossipFanout = Integer.getInteger("consensus.gossipFanout", 0); //Forward votes to this many random peers instead of all of them, 0 disables gossip
+    public static int treeArity = Integer.getInteger("consensus.treeArity", 0); //Aggregate votes up a tree with this many children per node instead of a full mesh, 0 disables it
+    public static boolean batched = Boolean.getBoolean("consensus.batched"); //Ask the coordinator's "/" separated questions in one ballot whose votes answer all of them, instead of an election each
+    public static boolean digest = Boolean.getBoolean("consensus.digest"); //After the first round, exchange digests of the votes known and send each peer only the ones it lacks
+    public static boolean rankedChoice = Boolean.getBoolean("consensus.rankedChoice"); //Vote with a full preference order, settled by instant runoff instead of restarts
+    public static boolean earlyDecision = Boolean.getBoolean("consensus.earlyDecision"); //Send the outcome as soon as one option holds a majority of every participant
+    public static int connectTimeoutMillis = Integer.getInteger("consensus.connectTimeout", 5000); //How long a participant keeps dialing a peer that refuses or doesn't answer before voting without it
+    public static int writeQueueDepth = Integer.getInteger("consensus.writeQueueDepth", 4096); //Buffers queued per socket connection before senders block
+    public static int flushLatencyMicros = Integer.getInteger("consensus.flushLatencyMicros", 0); //How long a socket connection's writer waits for more sends before flushing
+    public static boolean metrics = Boolean.getBoolean("consensus.metrics"); //Publish the Metrics MBean and print traffic and latency snapshots
+    public static int metricsIntervalMillis = Integer.getInteger("consensus.metricsInterval", 5000); //Period of the metrics snapshot, 0 only prints it when a vote concludes
+    public static Long seed = Long.getLong("consensus.seed"); //Seeds the participants' random choices (own vote, gossip peers, failing sends) for reproducible runs
+    public static boolean stats = Boolean.getBoolean("consensus.stats"); //Print thread count and resident memory when a vote concludes
+}
@@ -0,0 +1,237 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+public class Simulator extends LoopbackNetwork {
+    //Discrete-event runs of the real Coordinator and Participant code, on a virtual clock instead of the dispatcher thread :
+    //  java Simulator <participants> <runs> [options...]
+    //  -Dsim.latency, -Dsim.jitter : one way link delay in virtual microseconds, base plus uniform jitter (defaults 100 and 50)
+    //  -Dsim.loss : probability that a single write is lost (default 0)
+    //  -Dsim.failDuring, -Dsim.failAfter : how many participants run with failure condition 1 (DURING_STEP_4) and 2 (AFTER_STEP_4)
+    //  -Dsim.timeout : the participants' timeout in virtual milliseconds, after which silent peers are suspected (default 500, 0 for none)
+    //  -Dsim.maxTime : virtual milliseconds after which a run is given up on as stalled (default 60000)
+    //  -Dsim.seed : seed of the first run, run i uses seed + i, so any run can be replayed on its own
+    //  -Dsim.verbose : keep the coordinator and participant logging, for replaying a single run
+    //Everything happens on the calling thread, so a run with a given seed always takes the same path.
+    private static final int latency = Integer.getInteger("sim.latency", 100);
+    private static final int jitter = Integer.getInteger("sim.jitter", 50);
+    private static final double loss = Double.parseDouble(System.getProperty("sim.loss", "0"));
+    private static final int failDuring = Integer.getInteger("sim.failDuring", 0);
+    private static final int failAfter = Integer.getInteger("sim.failAfter", 0);
+    private static final long maxEvents = Long.getLong("sim.maxEvents", 50_000_000); //Per run, in case a run never settles
+    private static final int timeout = Integer.getInteger("sim.timeout", 500);
+    private static final long maxTime = Long.getLong("sim.maxTime", 60_000) * 1000;
+    private static final boolean verbose = Boolean.getBoolean("sim.verbose");
+    private static final int port = 20000;
+
+    private PriorityQueue<Event> events;
+    private long now; //Virtual microseconds since the start of the run
+    private long sequence; //Orders events scheduled for the same instant by submission
+    private Random random;
+    private HashedWheelTimer timer; //Ticked between events, its milliseconds being the same virtual time
+    private Map<LoopbackLink, Long> lastArrival; //Like TCP, a link never reorders its writes however the delays are drawn
+    private long messages;
+    private long lost;
+
+    private static class Event implements Comparable<Event> {
+        private long time;
+        private long sequence;
+        private Runnable task;
+
+        Event(long time, long sequence, Runnable task){
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event other){
+            if (time != other.time){
+                return Long.compare(time, other.time);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    Simulator(long seed){
+        this.events = new PriorityQueue<>();
+        this.random = new Random(seed);
+        this.lastArrival = new IdentityHashMap<>();
+        this.timer = new HashedWheelTimer();
+    }
+
+    @Override
+    void execute(Runnable task){
+        events.add(new Event(now, sequence++, task));
+    }
+
+    @Override
+    void deliver(LoopbackLink from, Runnable delivery){
+        messages++;
+        if (loss > 0 && random.nextDouble() < loss){
+            lost++;
+            return;
+        }
+        long arrival = now + latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0);
+        Long previous = lastArrival.get(from);
+        if (previous != null && previous > arrival){
+            arrival = previous;
+        }
+        lastArrival.put(from, arrival);
+        events.add(new Event(arrival, sequence++, delivery));
+    }
+
+    //Like a FIN, arrives after whatever the link wrote before closing and is never lost
+    @Override
+    void disconnect(LoopbackLink from, Runnable notification){
+        long arrival = now + latency;
+        Long previous = lastArrival.get(from);
+        if (previous != null && previous > arrival){
+            arrival = previous;
+        }
+        lastArrival.put(from, arrival);
+        events.add(new Event(arrival, sequence++, notification));
+    }
+
+    //Runs events and timer ticks in time order, until the coordinator is done or nothing is left to happen
+    void run(boolean[] done){
+        long processed = 0;
+        while (!done[0] && processed++ < maxEvents){
+            Event next = events.peek();
+            long tick = timer.nextTick() * 1000;
+            if (tick >= 0 && tick <= maxTime && (next == null || tick < next.time)){
+                now = tick;
+                timer.advanceTo(tick / 1000);
+                continue;
+            }
+            if (next == null || next.time > maxTime){
+                return;
+            }
+            events.poll();
+            now = next.time;
+            next.task.run();
+        }
+    }
+
+    //What a single run came to
+    static class Run {
+        boolean decided; //The coordinator concluded on an outcome
+        boolean disagreed; //Participants sent different outcomes
+        long decidedAt; //Virtual microseconds
+        int voters; //Voters behind the decision
+        long messages;
+        long bytes;
+        long lost;
+    }
+
+    //One run of the whole cluster with the given seed, silent unless -Dsim.verbose
+    static Run simulate(int participants, String[] options, long seed){
+        String[] coordinatorArgs = new String[2 + options.length];
+        coordinatorArgs[0] = String.valueOf(port);
+        coordinatorArgs[1] = String.valueOf(participants);
+        System.arraycopy(options, 0, coordinatorArgs, 2, options.length);
+
+        Settings.loopback = true;
+        Settings.seed = seed;
+        PrintStream out = System.out;
+        if (!verbose){
+            System.setOut(new PrintStream(new OutputStream(){
+                @Override
+                public void write(int b){
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len){
+                }
+            }));
+        }
+        Simulator simulator = new Simulator(seed);
+        LoopbackNetwork.install(simulator);
+        HashedWheelTimer.install(simulator.timer);
+        try {
+            boolean[] done = {false};
+            long bytesBefore = Metrics.INSTANCE.getBytesSent();
+            Coordinator coordinator = new Coordinator(coordinatorArgs, code -> done[0] = true);
+            for (int i = 1; i <= participants; i++){
+                int failure = i <= failDuring ? 1 : i <= failDuring + failAfter ? 2 : 0;
+                new Participant(new String[]{String.valueOf(port), String.valueOf(port + i), String.valueOf(timeout), String.valueOf(failure)}, code -> {});
+            }
+            simulator.run(done);
+            Run run = new Run();
+            run.decidedAt = simulator.now;
+
+            //Let the participants see the coordinator go and shut down, so nothing of this run is left open
+            simulator.run(new boolean[]{false});
+            run.messages = simulator.messages;
+            run.bytes = Metrics.INSTANCE.getBytesSent() - bytesBefore;
+            run.lost = simulator.lost;
+            run.disagreed = coordinator.hadDisagreement();
+            run.decided = !run.disagreed && done[0] && coordinator.getDecision() != null;
+            if (run.decided){
+                run.voters = coordinator.getDecision().getVoters().length;
+            }
+            return run;
+        } finally {
+            System.setOut(out);
+            LoopbackNetwork.install(null);
+            HashedWheelTimer.install(null);
+        }
+    }
+
+    public static void main(String[] args){
+        if (args.length < 2){
+            System.err.println("Usage : java Simulator <participants> <runs> [options...]");
+            System.exit(0);
+        }
+        int participants = Integer.parseInt(args[0]);
+        int runs = Integer.parseInt(args[1]);
+        String[] options = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[]{"A", "B"};
+        long seed = Long.getLong("sim.seed", 1);
+
+        Histogram timeToDecision = new Histogram("us");
+        Histogram messagesPerRun = new Histogram("");
+        Histogram bytesPerRun = new Histogram("B");
+        Histogram lostPerRun = new Histogram("");
+        int decided = 0;
+        int disagreed = 0;
+        int partial = 0; //Decided without every participant's vote
+        int stalled = 0; //Ran out of events or time without a decision, ie. waiting on a lost message, or gave up on one
+
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++){
+            Run run = simulate(participants, options, seed + i);
+            messagesPerRun.record(run.messages);
+            bytesPerRun.record(run.bytes);
+            lostPerRun.record(run.lost);
+            if (run.disagreed){
+                disagreed++;
+            } else if (!run.decided){
+                stalled++;
+            } else {
+                decided++;
+                timeToDecision.record(run.decidedAt);
+                if (run.voters < participants){
+                    partial++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("participants=" + participants + " runs=" + runs + " seed=" + seed + " latency=" + latency + "us jitter=" + jitter + "us loss=" + loss
+                + " failDuring=" + failDuring + " failAfter=" + failAfter + " timeout=" + timeout + "ms" + (Settings.gossipFanout > 0 ? " gossipFanout=" + Settings.gossipFanout : "")
+                + (Settings.digest ? " digest" : ""));
+        System.out.println("decided=" + decided + " (without every vote " + partial + ") disagreed=" + disagreed + " stalled=" + stalled);
+        System.out.println("timeToDecision " + timeToDecision);
+        System.out.println("roundsToConvergence " + Metrics.INSTANCE.roundsToConvergence);
+        System.out.println("messagesPerRun " + messagesPerRun);
+        System.out.println("bytesPerRun " + bytesPerRun);
+        if (loss > 0){
+            System.out.println("lostPerRun " + lostPerRun);
+        }
+        System.out.printf("wall %.1fs, %.0f runs/min%n", elapsed / 1e9, runs / (elapsed / 6e10));
+    }
+}
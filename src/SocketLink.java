@@ -0,0 +1,159 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class SocketLink implements Link {
+    //Blocking socket with a read and a write thread per link. Callers only enqueue, so a sender never waits on the socket
+    //while holding its own locks, and the writer drains everything pending into a single flush per wakeup.
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0); //Queued by close(), so pending writes go out first
+
+    private Socket socket;
+    private InputStream input;
+    private OutputStream output;
+    private BlockingQueue<ByteBuffer> outbound;
+    private Thread writer;
+    private boolean running = false;
+    private volatile boolean closed; //Set by close(), later writes are dropped as the writer is gone
+
+    SocketLink(Socket socket) throws IOException {
+        this.socket = socket;
+        this.input = socket.getInputStream();
+        this.output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        this.outbound = new ArrayBlockingQueue<>(Settings.writeQueueDepth);
+    }
+
+    @Override
+    public void start(Connection connection){
+        running = true;
+        Threads.start(() -> {
+            byte[] buffer = new byte[8192];
+            while (running){
+                try {
+                    int read = input.read(buffer);
+                    if (read < 0){
+                        connection.onDisconnect();
+                        return;
+                    }
+                    connection.onBytes(ByteBuffer.wrap(buffer, 0, read));
+                } catch (IOException e) {
+                    if (e instanceof SocketException){
+                        connection.onDisconnect();
+                        return;
+                    }
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        });
+        writer = Threads.start(this::writeLoop);
+    }
+
+    //Only blocks when writeQueueDepth buffers are already waiting, ie. when the peer stopped reading, and never past close()
+    @Override
+    public void write(ByteBuffer buffer){
+        try {
+            while (!closed){
+                if (outbound.offer(buffer, 100, TimeUnit.MILLISECONDS)){
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBuffer(ByteBuffer buffer, byte[] scratch) throws IOException {
+        if (buffer.hasArray()){
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            while (buffer.hasRemaining()){
+                int length = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, length);
+                output.write(scratch, 0, length);
+            }
+        }
+    }
+
+    private void writeLoop(){
+        List<ByteBuffer> batch = new ArrayList<>();
+        byte[] scratch = new byte[8192];
+        boolean closing = false;
+        while (!closing){
+            try {
+                batch.add(outbound.take());
+                if (Settings.flushLatencyMicros > 0){
+                    //Linger a little so that a fan out of sends ends up in the same flush
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(Settings.flushLatencyMicros);
+                    long remaining;
+                    while (batch.get(batch.size() - 1) != CLOSE && (remaining = deadline - System.nanoTime()) > 0){
+                        ByteBuffer next = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null){
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                outbound.drainTo(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                for (ByteBuffer buffer : batch){
+                    if (buffer == CLOSE){
+                        closing = true;
+                        break;
+                    }
+                    writeBuffer(buffer, scratch);
+                }
+                output.flush();
+            } catch (IOException e) {
+                if (closed){
+                    //close() gave up waiting on us and closed the socket
+                    return;
+                }
+                System.err.println("Failed to write to socket");
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //Lets the writer flush what is already queued, waiting at most a second so a dead peer can't hold up an exit.
+    //A full queue means the peer stopped reading, what it holds is dropped, which also frees any sender blocked on it.
+    //The socket is closed whatever happens, which is also what ends the reader and reports the disconnect.
+    @Override
+    public void close(){
+        running = false;
+        closed = true;
+        try {
+            while (!outbound.offer(CLOSE)){
+                outbound.clear();
+            }
+            if (writer != null){
+                writer.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class TextCodec implements WireCodec {
+    //One token per line, as understood by Tokeniser
+    public static final TextCodec INSTANCE = new TextCodec();
+
+    @Override
+    public ByteBuffer encode(Token token){
+        return ByteBuffer.wrap((token.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public int frameLength(ByteBuffer buffer){
+        for (int i = buffer.position(); i < buffer.limit(); i++){
+            if (buffer.get(i) == '\n'){
+                return i - buffer.position() + 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Token decode(ByteBuffer frame){
+        int end = frame.limit() - 1; //Drop the newline, and the carriage return if the peer sent one
+        if (end > frame.position() && frame.get(end - 1) == '\r'){
+            end--;
+        }
+        frame.limit(end);
+        //The connection hands the token over to the participant's mailbox, so it can't stay the parser's reused instance
+        Token token = Tokeniser.parseInput(frame);
+        return token == null ? null : token.detach();
+    }
+}
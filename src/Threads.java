@@ -0,0 +1,43 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+public class Threads {
+    //Starts the long running loops (socket readers, accept loops) either on platform threads or on virtual threads
+    private static ThreadFactory virtualFactory;
+
+    public static Thread start(Runnable runnable){
+        Thread thread = Settings.virtualThreads ? newVirtualThread(runnable) : null;
+        if (thread == null){
+            thread = new Thread(runnable);
+        }
+        thread.start();
+        return thread;
+    }
+
+    //Virtual threads are daemon threads, so the main thread has to stay alive until the process calls System.exit
+    public static void keepAlive(){
+        if (!Settings.virtualThreads){
+            return;
+        }
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Looked up reflectively so the code still compiles and runs on JDKs without virtual threads
+    private static synchronized Thread newVirtualThread(Runnable runnable){
+        if (virtualFactory == null){
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                virtualFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JVM, falling back to platform threads");
+                Settings.virtualThreads = false;
+                return null;
+            }
+        }
+        return virtualFactory.newThread(runnable);
+    }
+}
@@ -0,0 +1,270 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class TokenParser {
+    //Reads a text line straight from a CharSequence or ByteBuffer and reports its fields to a TokenVisitor.
+    //No intermediate strings, arrays or collections are created, so an instance is reused and not thread safe.
+    private Slice word; //Current word, reused for every field
+    private AsciiBytes bytes; //CharSequence view over a ByteBuffer, reused for every parse(ByteBuffer)
+    private CharSequence input;
+    private int position;
+    private int end;
+
+    public TokenParser(){
+        this.word = new Slice();
+        this.bytes = new AsciiBytes();
+    }
+
+    public boolean parse(ByteBuffer line, TokenVisitor visitor){
+        bytes.wrap(line);
+        return parse(bytes, visitor);
+    }
+
+    //Returns false if the line is not a known token
+    public boolean parse(CharSequence line, TokenVisitor visitor){
+        this.input = line;
+        this.position = 0;
+        this.end = line.length();
+        if (!nextWord()){
+            return false;
+        }
+        int election = 0;
+        int epoch = 0;
+        if (word.length() > 1 && word.charAt(0) == '#'){
+            //#7, or #7.1 once election 7 has been restarted
+            int dot = word.indexOf('.');
+            election = word.toInt(1, dot < 0 ? word.length() : dot);
+            epoch = dot < 0 ? 0 : word.toInt(dot + 1, word.length());
+            if (!nextWord()){
+                return false;
+            }
+        }
+        if (word.is("JOIN")){
+            visitor.onTokenStart("JOIN", election, epoch);
+            nextWord();
+            int port = word.toInt();
+            visitor.onJoin(port, nextWord() && word.is("BINARY"));
+        } else if (word.is("DETAILS")){
+            visitor.onTokenStart("DETAILS", election, epoch);
+            while (nextWord()){
+                if (word.is("PARENT")){
+                    nextWord();
+                    visitor.onParent(word.toInt());
+                } else {
+                    visitor.onDetails(word.toInt());
+                }
+            }
+        } else if (word.is("VOTE_OPTIONS")){
+            visitor.onTokenStart("VOTE_OPTIONS", election, epoch);
+            while (nextWord()){
+                visitor.onVoteOption(word);
+            }
+        } else if (word.is("VOTE")){
+            visitor.onTokenStart("VOTE", election, epoch);
+            boolean multi = countRemainingWords() > 2;
+            while (nextWord()){
+                int port = word.toInt();
+                nextWord();
+                visitor.onVote(port, word, multi);
+            }
+        } else if (word.is("OUTCOME")){
+            visitor.onTokenStart("OUTCOME", election, epoch);
+            nextWord();
+            if (word.is("null")){
+                visitor.onOutcome(null);
+                while (nextWord()){
+                    visitor.onTiedOption(word);
+                }
+            } else {
+                visitor.onOutcome(word);
+                while (nextWord()){
+                    if (word.is("EARLY")){
+                        visitor.onEarlyOutcome();
+                    } else {
+                        visitor.onOutcomeVoter(word.toInt());
+                    }
+                }
+            }
+        } else if (word.is("HEARTBEAT")){
+            visitor.onTokenStart("HEARTBEAT", election, epoch);
+            nextWord();
+            visitor.onHeartbeat(word.toInt());
+        } else if (word.is("DIGEST")){
+            visitor.onTokenStart("DIGEST", election, epoch);
+            nextWord();
+            visitor.onDigest(word);
+        } else {
+            return false;
+        }
+        visitor.onTokenEnd();
+        return true;
+    }
+
+    //Moves word to the next whitespace separated word, returns false at the end of the line
+    private boolean nextWord(){
+        while (position < end && isSpace(input.charAt(position))){
+            position++;
+        }
+        if (position >= end){
+            word.set(input, position, position);
+            return false;
+        }
+        int start = position;
+        while (position < end && !isSpace(input.charAt(position))){
+            position++;
+        }
+        word.set(input, start, position);
+        return true;
+    }
+
+    private int countRemainingWords(){
+        int count = 0;
+        boolean inWord = false;
+        for (int i = position; i < end; i++){
+            boolean whitespace = isSpace(input.charAt(i));
+            if (!whitespace && !inWord){
+                count++;
+            }
+            inWord = !whitespace;
+        }
+        return count;
+    }
+
+    //Same characters as the regex whitespace class (\s) used by the old String.split
+    private static boolean isSpace(char c){
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    //Mutable window onto another CharSequence
+    static class Slice implements CharSequence {
+        private CharSequence source;
+        private int start;
+        private int end;
+
+        void set(CharSequence source, int start, int end){
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        int indexOf(char c){
+            for (int i = start; i < end; i++){
+                if (source.charAt(i) == c){
+                    return i - start;
+                }
+            }
+            return -1;
+        }
+
+        boolean is(String value){
+            if (value.length() != length()){
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++){
+                if (value.charAt(i) != charAt(i)){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //Same contract as Integer.parseInt for the non-negative numbers used for ports
+        int toInt(){
+            return toInt(0);
+        }
+
+        //Number starting at offset within the word, ie. 1 to skip the # of an election id
+        int toInt(int offset){
+            return toInt(offset, length());
+        }
+
+        //Number between from and to within the word, ie. the epoch after the dot of #7.1
+        int toInt(int from, int to){
+            if (from >= to){
+                throw new NumberFormatException("Expected a number at the end of the line");
+            }
+            int value = 0;
+            for (int i = start + from; i < start + to; i++){
+                int digit = source.charAt(i) - '0';
+                if (digit < 0 || digit > 9){
+                    throw new NumberFormatException("For input string: \"" + toString() + "\"");
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        @Override
+        public int length(){
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index){
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to){
+            return source.subSequence(start + from, start + to);
+        }
+
+        @Override
+        public String toString(){
+            return source.subSequence(start, end).toString();
+        }
+    }
+
+    //Reads a buffer one byte per char while it is ASCII, as token names, ports and most options are. A line with other bytes
+    //is decoded as UTF-8 once, so that charAt, and with it the builder's intern cache, agrees with toString.
+    static class AsciiBytes implements CharSequence {
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+        private String decoded; //The whole line, only when it isn't ASCII
+
+        void wrap(ByteBuffer buffer){
+            this.buffer = buffer;
+            this.offset = buffer.position();
+            this.length = buffer.remaining();
+            this.decoded = null;
+            for (int i = 0; i < length; i++){
+                if (buffer.get(offset + i) < 0){
+                    decoded = StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+                    length = decoded.length();
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public int length(){
+            return length;
+        }
+
+        @Override
+        public char charAt(int index){
+            if (decoded != null){
+                return decoded.charAt(index);
+            }
+            return (char) buffer.get(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to){
+            if (decoded != null){
+                return decoded.substring(from, to);
+            }
+            byte[] copy = new byte[to - from];
+            for (int i = 0; i < copy.length; i++){
+                copy[i] = buffer.get(offset + from + i);
+            }
+            return new String(copy, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String toString(){
+            return subSequence(0, length).toString();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+public interface TokenVisitor {
+    //Receives the fields of a token as TokenParser reads them, without any Token being built.
+    //CharSequence arguments are views into the parser's input and are only valid for the duration of the call.
+
+    //name is one of the token name constants (JOIN, DETAILS, VOTE_OPTIONS, VOTE, OUTCOME, HEARTBEAT, DIGEST), election is 0 if the line had no #id prefix
+    //and epoch is 0 if that prefix had no .restart suffix
+    void onTokenStart(String name, int election, int epoch);
+
+    void onJoin(int port, boolean binary);
+
+    void onDetails(int port);
+
+    void onParent(int port);
+
+    void onVoteOption(CharSequence option);
+
+    //multi is true when the token carries several votes (ie. a MultiVoteToken in subsequent rounds)
+    void onVote(int port, CharSequence vote, boolean multi);
+
+    //outcome is null on a tie or missing majority, followed by onTiedOption calls instead of onOutcomeVoter
+    void onOutcome(CharSequence outcome);
+
+    //The outcome was sent on an early majority, its voters are then only the ones who voted for it
+    void onEarlyOutcome();
+
+    void onOutcomeVoter(int port);
+
+    void onTiedOption(CharSequence option);
+
+    void onHeartbeat(int port);
+
+    void onDigest(CharSequence known);
+
+    void onTokenEnd();
+}
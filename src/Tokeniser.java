@@ -1,53 +1,31 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class Tokeniser {
+    private static final ThreadLocal<TokenParser> parsers = ThreadLocal.withInitial(TokenParser::new);
+    private static final ThreadLocal<TokenBuilder> builders = ThreadLocal.withInitial(TokenBuilder::new);
+
+    //VOTE and OUTCOME tokens come back in instances owned by this thread's builder and are overwritten by its next parse.
+    //Call detach() on the result to keep it any longer.
     public static Token parseInput(String input){
-        String[] parts = input.split("\\s");
-        switch (parts[0]){
-            case "JOIN":
-                int port = Integer.parseInt(parts[1]);
-                return new JoinToken(port);
-            case "DETAILS":
-                ArrayList<String> portsRaw = new ArrayList<>();
-                portsRaw.addAll(Arrays.asList(parts));
-                portsRaw.remove(0);
-                int[] ports = portsRaw.stream().map(Integer::parseInt).mapToInt(Integer::intValue).toArray();
-                return new DetailsToken(ports);
-            case "VOTE_OPTIONS":
-                return new VoteOptionsToken(Arrays.copyOfRange(parts, 1, parts.length));
-            case "VOTE":
-                if (parts.length > 3){
-                    //This is a multivote voken (used in subsequent rounds)
-                    Map<Integer, String> votes = new HashMap<>();
-                    for (int i = 1; i < parts.length - 1; i += 2){
-                        int p = Integer.parseInt(parts[i]);
-                        String v = parts[i+1];
-                        votes.put(p, v);
-                    }
-                    return new MultiVoteToken(votes);
-                } else {
-                    //This is a single vote token (used in the first round)
-                    return new VoteToken(Integer.parseInt(parts[1]), parts[2]);
-                }
+        TokenBuilder builder = builders.get();
+        if (!parsers.get().parse(input, builder)){
+            System.err.println("Unknown vote : " + input.split("\\s")[0]);
+            return null;
+        }
+        return builder.getToken();
+    }
 
-            case "OUTCOME":
-                if (parts[1].equals("null")){
-                    List<String> tiedOptions = new ArrayList<>(Arrays.asList(Arrays.copyOfRange(parts, 2, parts.length)));
-                    return new OutcomeToken(null, tiedOptions);
-                } else {
-                    int[] participants = new int[parts.length - 2];
-                    int i = 0;
-                    for (String participant : Arrays.copyOfRange(parts, 2, parts.length)){
-                        participants[i] = Integer.parseInt(participant);
-                        i++;
-                    }
-                    return new OutcomeToken(parts[1], participants);
-                }
-            default:
-                System.err.println("Unknown vote : " + parts[0]);
+    //Same as parseInput(String), reading the line straight from the buffer (without its line terminator)
+    public static Token parseInput(ByteBuffer input){
+        TokenBuilder builder = builders.get();
+        if (!parsers.get().parse(input, builder)){
+            System.err.println("Unknown vote : " + StandardCharsets.UTF_8.decode(input.duplicate()).toString().split("\\s")[0]);
+            return null;
         }
-        return null;
+        return builder.getToken();
     }
 
     public static String joinList(int[] items){
@@ -70,33 +48,382 @@ public class Tokeniser {
 
 }
 
+class TokenBuilder implements TokenVisitor {
+    //Turns parser callbacks back into Token instances. One builder is reused for every line of a thread, and the VOTE and
+    //OUTCOME tokens every round is made of are filled in place, so once warm parsing them allocates nothing.
+    private String name;
+    private int election;
+    private int epoch;
+    private int port;
+    private boolean binary;
+    private int parent;
+    private int[] ports = new int[16];
+    private int portCount;
+    private List<String> words = new ArrayList<>();
+    private String vote;
+    private boolean multi;
+    private String outcome;
+    private boolean early;
+    private BitSet known;
+    private Token token;
+
+    private String[] strings = new String[64]; //Options seen so far, by hash. They are the same few words on every line
+    private int[][] voterArrays = new int[16][]; //Exact length arrays for OUTCOME voters, by length
+    private VoteToken voteToken = new VoteToken(0, null);
+    private MultiVoteToken multiVoteToken = new MultiVoteToken(new VoteMap());
+    private OutcomeToken outcomeToken = new OutcomeToken(null, new int[0]);
+    private OutcomeToken tiedToken = new OutcomeToken(null, new ArrayList<>());
+
+    TokenBuilder(){
+        voteToken.reused = true;
+        multiVoteToken.reused = true;
+        outcomeToken.reused = true;
+        tiedToken.reused = true;
+    }
+
+    @Override
+    public void onTokenStart(String name, int election, int epoch){
+        this.name = name;
+        this.election = election;
+        this.epoch = epoch;
+        this.token = null;
+        this.outcome = null;
+        this.early = false;
+        this.multi = false;
+        this.parent = 0;
+        this.portCount = 0;
+        words.clear();
+        ((VoteMap) multiVoteToken.getVotes()).clear();
+    }
+
+    @Override
+    public void onJoin(int port, boolean binary){
+        this.port = port;
+        this.binary = binary;
+    }
+
+    @Override
+    public void onDetails(int port){
+        addPort(port);
+    }
+
+    @Override
+    public void onParent(int port){
+        this.parent = port;
+    }
+
+    @Override
+    public void onVoteOption(CharSequence option){
+        words.add(option.toString());
+    }
+
+    @Override
+    public void onVote(int port, CharSequence vote, boolean multi){
+        this.port = port;
+        this.multi = multi;
+        this.vote = intern(vote);
+        if (multi){
+            ((VoteMap) multiVoteToken.getVotes()).add(port, this.vote);
+        }
+    }
+
+    @Override
+    public void onOutcome(CharSequence outcome){
+        this.outcome = outcome == null ? null : intern(outcome);
+    }
+
+    @Override
+    public void onEarlyOutcome(){
+        this.early = true;
+    }
+
+    @Override
+    public void onOutcomeVoter(int port){
+        addPort(port);
+    }
+
+    @Override
+    public void onTiedOption(CharSequence option){
+        words.add(intern(option));
+    }
+
+    @Override
+    public void onHeartbeat(int port){
+        this.port = port;
+    }
+
+    @Override
+    public void onDigest(CharSequence known){
+        this.known = DigestToken.fromHex(known);
+    }
+
+    @Override
+    public void onTokenEnd(){
+        switch (name){
+            case "JOIN":
+                token = new JoinToken(port, binary);
+                break;
+            case "DETAILS":
+                token = new DetailsToken(Arrays.copyOf(ports, portCount), parent);
+                break;
+            case "VOTE_OPTIONS":
+                token = new VoteOptionsToken(words.toArray(new String[0]));
+                break;
+            case "VOTE":
+                if (multi){
+                    token = multiVoteToken;
+                } else {
+                    voteToken.set(port, vote);
+                    token = voteToken;
+                }
+                break;
+            case "OUTCOME":
+                if (outcome == null){
+                    List<String> tied = tiedToken.getTiedOptions();
+                    tied.clear();
+                    for (int i = 0; i < words.size(); i++){
+                        tied.add(words.get(i)); //addAll would copy words to an array first
+                    }
+                    token = tiedToken;
+                } else {
+                    outcomeToken.set(outcome, voterArray());
+                    outcomeToken.setEarly(early);
+                    token = outcomeToken;
+                }
+                break;
+            case "HEARTBEAT":
+                token = new HeartbeatToken(port);
+                break;
+            case "DIGEST":
+                token = new DigestToken(known);
+                break;
+        }
+        token.setElection(election);
+        token.setEpoch(epoch);
+    }
+
+    public Token getToken(){
+        return token;
+    }
+
+    private void addPort(int port){
+        if (portCount == ports.length){
+            ports = Arrays.copyOf(ports, portCount * 2);
+        }
+        ports[portCount++] = port;
+    }
+
+    private int[] voterArray(){
+        if (portCount >= voterArrays.length){
+            voterArrays = Arrays.copyOf(voterArrays, Math.max(portCount + 1, voterArrays.length * 2));
+        }
+        int[] array = voterArrays[portCount];
+        if (array == null){
+            array = new int[portCount];
+            voterArrays[portCount] = array;
+        }
+        System.arraycopy(ports, 0, array, 0, portCount);
+        return array;
+    }
+
+    //Same String for the same characters as long as it keeps its slot, so a known option allocates nothing
+    private String intern(CharSequence chars){
+        int hash = 0;
+        for (int i = 0; i < chars.length(); i++){
+            hash = 31 * hash + chars.charAt(i);
+        }
+        int slot = (hash ^ hash >>> 16) & (strings.length - 1);
+        String cached = strings[slot];
+        if (cached != null && cached.contentEquals(chars)){
+            return cached;
+        }
+        cached = chars.toString();
+        strings[slot] = cached;
+        return cached;
+    }
+}
+
+class VoteMap extends AbstractMap<Integer, String> {
+    //Port to vote map of a reused MultiVoteToken. Ports and votes sit in parallel arrays with an open addressing index over
+    //them, so adding a vote allocates no entry and boxes no key. A port repeated on the line keeps its first vote.
+    private int[] ports = new int[16];
+    private String[] votes = new String[16];
+    private int size;
+    private int[] index = new int[32]; //Position + 1 in ports of the port hashed there, 0 when free
+
+    void add(int port, String vote){
+        if (find(port) >= 0){
+            return;
+        }
+        if (size == ports.length){
+            ports = Arrays.copyOf(ports, size * 2);
+            votes = Arrays.copyOf(votes, size * 2);
+        }
+        if ((size + 1) * 2 > index.length){
+            index = new int[index.length * 2];
+            for (int i = 0; i < size; i++){
+                index[freeSlot(ports[i])] = i + 1;
+            }
+        }
+        ports[size] = port;
+        votes[size] = vote;
+        index[freeSlot(port)] = ++size;
+    }
+
+    @Override
+    public void clear(){
+        //Only the slots in use are zeroed, so a small line after a large one doesn't pay for the large index
+        for (int i = 0; i < size; i++){
+            int slot = slot(ports[i]);
+            while (index[slot] != i + 1){
+                slot = (slot + 1) & (index.length - 1);
+            }
+            index[slot] = 0;
+            votes[i] = null;
+        }
+        size = 0;
+    }
+
+    private int slot(int port){
+        return (port * 0x9E3779B9 >>> 16) & (index.length - 1);
+    }
+
+    private int freeSlot(int port){
+        int slot = slot(port);
+        while (index[slot] != 0){
+            slot = (slot + 1) & (index.length - 1);
+        }
+        return slot;
+    }
+
+    private int find(int port){
+        int slot = slot(port);
+        while (index[slot] != 0){
+            if (ports[index[slot] - 1] == port){
+                return index[slot] - 1;
+            }
+            slot = (slot + 1) & (index.length - 1);
+        }
+        return -1;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return key instanceof Integer && find((Integer) key) >= 0;
+    }
+
+    @Override
+    public String get(Object key){
+        int position = key instanceof Integer ? find((Integer) key) : -1;
+        return position < 0 ? null : votes[position];
+    }
+
+    @Override
+    public Set<Entry<Integer, String>> entrySet(){
+        return new AbstractSet<Entry<Integer, String>>() {
+            @Override
+            public Iterator<Entry<Integer, String>> iterator(){
+                return new Iterator<Entry<Integer, String>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext(){
+                        return next < size;
+                    }
+
+                    @Override
+                    public Entry<Integer, String> next(){
+                        if (next >= size){
+                            throw new NoSuchElementException();
+                        }
+                        Entry<Integer, String> entry = new SimpleImmutableEntry<>(ports[next], votes[next]);
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size(){
+                return size;
+            }
+        };
+    }
+}
+
 abstract class Token {
     String name;
+    int election; //Election the token belongs to. 0 is the default election and is not written on the wire (#7 VOTE 12346 A)
+    int epoch; //Run of the election, bumped on every restart so late votes of an earlier run are told apart (#7.1 VOTE 12346 A)
+    boolean reused; //Owned by a TokenBuilder and overwritten by its next line
 
     public Token(String name){
         this.name = name;
     }
+
+    //A token that can be kept, ie. a copy of a reused one
+    Token detach(){
+        return this;
+    }
+
+    public int getElection() {
+        return election;
+    }
+
+    public void setElection(int election) {
+        this.election = election;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    String electionPrefix(){
+        if (epoch != 0){
+            return "#" + election + "." + epoch + " ";
+        }
+        return election == 0 ? "" : "#" + election + " ";
+    }
 }
 
 class JoinToken extends Token {
 
     private int port;
+    private boolean binary; //Sender understands BinaryCodec (JOIN 12346 BINARY). Older peers ignore the extra field.
     private Connection connection;
 
     public JoinToken(int port){
+        this(port, false);
+    }
+
+    public JoinToken(int port, boolean binary){
         super("JOIN");
         this.port = port;
+        this.binary = binary;
     }
 
     @Override
     public String toString(){
-        return "JOIN " + port;
+        return binary ? "JOIN " + port + " BINARY" : "JOIN " + port;
     }
 
     public int getPort() {
         return port;
     }
 
+    public boolean isBinary() {
+        return binary;
+    }
+
     public Connection getConnection() {
         return connection;
     }
@@ -106,23 +433,120 @@ class JoinToken extends Token {
     }
 }
 
+class DigestToken extends Token {
+    //DIGEST 7f3, the voters the sender knows the vote of. Bit i is the i-th port of the electorate (every participant, sorted),
+    //the hex digits going from the lowest bits up, so a digest is a quarter of a character per participant
+    private BitSet known;
+    private int sourcePort; //Sender of the token
+
+    public DigestToken(BitSet known){
+        super("DIGEST");
+        this.known = known;
+    }
+
+    @Override
+    public String toString(){
+        return electionPrefix() + "DIGEST " + toHex(known);
+    }
+
+    static String toHex(BitSet bits){
+        int digits = Math.max(1, (bits.length() + 3) / 4);
+        StringBuilder hex = new StringBuilder(digits);
+        for (int digit = 0; digit < digits; digit++){
+            int value = 0;
+            for (int bit = 0; bit < 4; bit++){
+                if (bits.get(digit * 4 + bit)){
+                    value |= 1 << bit;
+                }
+            }
+            hex.append(Character.forDigit(value, 16));
+        }
+        return hex.toString();
+    }
+
+    static BitSet fromHex(CharSequence hex){
+        BitSet bits = new BitSet(hex.length() * 4);
+        for (int digit = 0; digit < hex.length(); digit++){
+            int value = Character.digit(hex.charAt(digit), 16);
+            if (value < 0){
+                throw new NumberFormatException("For input string: \"" + hex + "\"");
+            }
+            for (int bit = 0; bit < 4; bit++){
+                if ((value & 1 << bit) != 0){
+                    bits.set(digit * 4 + bit);
+                }
+            }
+        }
+        return bits;
+    }
+
+    public BitSet getKnown(){
+        return known;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public void setSourcePort(int sourcePort) {
+        this.sourcePort = sourcePort;
+    }
+}
+
+class HeartbeatToken extends Token {
+    //HEARTBEAT 12346, sent to a peer we have had nothing else to send to for a while
+    private int port;
+
+    public HeartbeatToken(int port){
+        super("HEARTBEAT");
+        this.port = port;
+    }
+
+    @Override
+    public String toString(){
+        return "HEARTBEAT " + port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
+
 class DetailsToken extends Token {
-    //DETAILS 12347 12348
+    //DETAILS 12347 12348 in a full mesh, the other participants.
+    //DETAILS 12347 12348 PARENT 12345 in an aggregation tree, our children and the node we report to.
     private int[] ports;
+    private int parent; //0 in a full mesh
 
     public DetailsToken(int[] ports){
+        this(ports, 0);
+    }
+
+    public DetailsToken(int[] ports, int parent){
         super("DETAILS");
         this.ports = ports;
+        this.parent = parent;
     }
 
     @Override
     public String toString(){
-        return "DETAILS " + Tokeniser.joinList(ports);
+        if (parent == 0){
+            return "DETAILS " + Tokeniser.joinList(ports);
+        }
+        return ports.length == 0 ? "DETAILS PARENT " + parent : "DETAILS " + Tokeniser.joinList(ports) + " PARENT " + parent;
     }
 
     public int[] getPorts() {
         return ports;
     }
+
+    public int getParent() {
+        return parent;
+    }
+
+    public boolean isTree() {
+        return parent != 0;
+    }
 }
 
 class VoteOptionsToken extends Token {
@@ -136,7 +560,7 @@ class VoteOptionsToken extends Token {
 
     @Override
     public String toString(){
-        return "VOTE_OPTIONS " + Tokeniser.joinList(options);
+        return electionPrefix() + "VOTE_OPTIONS " + Tokeniser.joinList(options);
     }
 
     public String[] getOptions() {
@@ -155,9 +579,25 @@ class VoteToken extends Token {
         this.vote = vote;
     }
 
+    void set(int port, String vote){
+        this.port = port;
+        this.vote = vote;
+    }
+
+    @Override
+    Token detach(){
+        if (!reused){
+            return this;
+        }
+        VoteToken copy = new VoteToken(port, vote);
+        copy.setElection(election);
+        copy.setEpoch(epoch);
+        return copy;
+    }
+
     @Override
     public String toString(){
-        return "VOTE " + port + " " + vote;
+        return electionPrefix() + "VOTE " + port + " " + vote;
     }
 
     public int getPort() {
@@ -179,6 +619,18 @@ class MultiVoteToken extends Token {
         this.votes = votes;
     }
 
+    @Override
+    Token detach(){
+        if (!reused){
+            return this;
+        }
+        MultiVoteToken copy = new MultiVoteToken(new HashMap<>(votes));
+        copy.setElection(election);
+        copy.setEpoch(epoch);
+        copy.setSourcePort(sourcePort);
+        return copy;
+    }
+
     @Override
     public String toString(){
         StringBuilder sb = new StringBuilder();
@@ -188,7 +640,11 @@ class MultiVoteToken extends Token {
             sb.append(votes.get(port));
             sb.append(" ");
         }
-        return "VOTE " + sb.toString();
+        if (votes.size() == 1){
+            //A single pair would read back as a VoteToken from its voter, so repeat it to keep it a multivote
+            sb.append(sb);
+        }
+        return electionPrefix() + "VOTE " + sb.toString();
     }
 
     public int getSourcePort() {
@@ -205,10 +661,11 @@ class MultiVoteToken extends Token {
 }
 
 class OutcomeToken extends Token {
-    //OUTCOME A 12346 12347 12348
+    //OUTCOME A 12346 12347 12348, or OUTCOME A EARLY 12346 12347 when sent on an early majority
     private String outcome;
     private int sourcePort;
     private int[] voters; //ie. voters taken into account when determining the outcome
+    private boolean early; //Sent on an early majority, the voters are then only the ones who voted for the outcome
     private List<String> tiedOptions; //if the outcome is null, then tiedOptions will be a list of the most popular options in case of tie
 
     public OutcomeToken(String outcome, int[] voters){
@@ -223,12 +680,30 @@ class OutcomeToken extends Token {
         this.tiedOptions = tiedOptions;
     }
 
+    void set(String outcome, int[] voters){
+        this.outcome = outcome;
+        this.voters = voters;
+    }
+
+    @Override
+    Token detach(){
+        if (!reused){
+            return this;
+        }
+        OutcomeToken copy = outcome == null ? new OutcomeToken(null, new ArrayList<>(tiedOptions)) : new OutcomeToken(outcome, voters.clone());
+        copy.setEarly(early);
+        copy.setElection(election);
+        copy.setEpoch(epoch);
+        copy.setSourcePort(sourcePort);
+        return copy;
+    }
+
     @Override
     public String toString(){
         if (outcome == null){
-            return "OUTCOME null " + Tokeniser.joinList(tiedOptions);
+            return electionPrefix() + "OUTCOME null " + Tokeniser.joinList(tiedOptions);
         } else {
-            return "OUTCOME " + outcome + " " + Tokeniser.joinList(voters);
+            return electionPrefix() + "OUTCOME " + outcome + (early ? " EARLY " : " ") + Tokeniser.joinList(voters);
         }
 
     }
@@ -252,4 +727,12 @@ class OutcomeToken extends Token {
     public int[] getVoters() {
         return voters;
     }
+
+    public void setEarly(boolean early) {
+        this.early = early;
+    }
+
+    public boolean isEarly() {
+        return early;
+    }
 }
@@ -1,23 +1,126 @@
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class Voting {
-    private Map<Integer, String> votes; //Mapping from port to vote
-    private Map<Integer, String> newVotes; //Resets every round, after votes are sent to other participants.
-    private Map<String, Integer> voteCounter; //Mapping from vote to vote count
-    private Map<Integer, Set<Integer>> participantVoteKnowledge;
-    private ArrayList<Integer> roundParticipants; //Participants in each round. Gets cleared at the beginning of a round.
+    //Options are interned to small ordinals and voters to dense indices, so tallying never boxes or hashes strings.
+    //Strings only appear at the Token boundary (castMultiVote(.., String), getNewVotes, getWinningVotes).
+    private List<String> options; //Ordinal to option
+    private Map<String, Integer> optionOrdinals; //Option to ordinal, only used when a vote comes in as a string
+    private PortIndex voters; //Voter port to dense index
+    private int[] votes; //Mapping from voter index to option ordinal, NO_VOTE if we don't know it yet
+    private int[][] rankings; //Voter index to its preference order (first choice = votes[voter]), null for a plain vote
+    private boolean ranked; //True once a ranked vote was cast, the outcome is then found by instant runoff
+    private int voteCount;
+    private int[] newVotes; //Voter indices whose vote was learnt this round. Resets every round, after votes are sent to other participants.
+    private int newVoteCount;
+    private int[] voteCounter; //Mapping from option ordinal to vote count
+    //Options grouped by count, so the leader, runners-up and least popular options are known without a rescan.
+    //Each non-empty count is a bucket holding a list of options, and buckets are chained in count order.
+    private int[] optionNext; //Option ordinal to the next option with the same count, NONE at the end
+    private int[] optionPrev;
+    private int[] bucketFirst; //Count to the first option with that count, NONE if no option has it
+    private int[] bucketSize;
+    private int[] bucketHigher; //Count to the next higher non-empty count, 0 if it is the highest
+    private int[] bucketLower; //Count to the next lower non-empty count, 0 if it is the lowest
+    private int highestCount; //0 while nothing is counted
+    private int lowestCount; //Lowest count above 0
+    private long[][] participantVoteKnowledge; //Peer index to bitset of the voter indices that peer has sent us, allocated on first use
+    private int[] knowledgeSize; //Peer index to number of bits set in its knowledge
+    private boolean[] tracked; //Peers that must be knowledgeable before the outcome can be resolved
+    private int trackedCount;
+    private int knowledgeableCount; //Tracked peers whose knowledge size has reached knowledgeTarget
+    private int knowledgeTarget;
     private int roundParticipantCounter; //Count the number of participants in each round. Used to determine end of round.
-    private ArrayList<Integer> participants;
+    private Voting[] questions; //Batched ballot : one tally per question, each fed its part of every vote. Null for a single question
+
+    private static final int NO_VOTE = -1;
+    private static final int NONE = -1;
+    public static final char RANK_SEPARATOR = '>'; //A ranked vote is sent as its options in order of preference, ie. B>A>C
+    public static final String QUESTION_SEPARATOR = "/"; //Between the option lists of a batched ballot, ie. VOTE_OPTIONS A B / X Y
+    public static final char ANSWER_SEPARATOR = '|'; //A vote on a batched ballot answers every question in order, ie. A|Y
 
     public Voting(){
-        this.votes = new HashMap<>();
-        this.newVotes = new HashMap<>();
-        this.participants = new ArrayList<>();
-        this.participantVoteKnowledge = new HashMap<>();
-        this.roundParticipants = new ArrayList<>();
+        this.options = new ArrayList<>();
+        this.optionOrdinals = new HashMap<>();
+        this.voters = new PortIndex();
+        this.votes = new int[16];
+        Arrays.fill(votes, NO_VOTE);
+        this.rankings = new int[16][];
+        this.ranked = false;
+        this.voteCount = 0;
+        this.newVotes = new int[16];
+        this.newVoteCount = 0;
+        this.voteCounter = new int[4];
+        this.optionNext = new int[4];
+        this.optionPrev = new int[4];
+        this.bucketFirst = new int[16];
+        Arrays.fill(bucketFirst, NONE);
+        this.bucketSize = new int[16];
+        this.bucketHigher = new int[16];
+        this.bucketLower = new int[16];
+        this.highestCount = 0;
+        this.lowestCount = 0;
+        this.participantVoteKnowledge = new long[16][];
+        this.knowledgeSize = new int[16];
+        this.tracked = new boolean[16];
+        this.trackedCount = 0;
+        this.knowledgeableCount = 0;
+        this.knowledgeTarget = Integer.MAX_VALUE;
         this.roundParticipantCounter = 0;
-        this.voteCounter = new HashMap<>();
+    }
+
+    //Fixes the option ordinals once VOTE_OPTIONS arrives. Unknown options seen later are still interned on the fly.
+    //Several questions make this a batched ballot : votes are then interned whole and tallied again per question.
+    public void setOptions(String[] options){
+        List<String[]> lists = splitQuestions(options);
+        if (lists.size() > 1){
+            questions = new Voting[lists.size()];
+            for (int i = 0; i < questions.length; i++){
+                questions[i] = new Voting();
+                questions[i].setOptions(lists.get(i));
+            }
+            return;
+        }
+        for (String option : options){
+            ordinal(option);
+        }
+    }
+
+    //The option lists between QUESTION_SEPARATORs, empty ones left out
+    public static List<String[]> splitQuestions(String[] options){
+        List<String[]> lists = new ArrayList<>(1);
+        int from = 0;
+        for (int i = 0; i <= options.length; i++){
+            if (i == options.length || options[i].equals(QUESTION_SEPARATOR)){
+                if (i > from){
+                    lists.add(Arrays.copyOfRange(options, from, i));
+                }
+                from = i + 1;
+            }
+        }
+        return lists;
+    }
+
+    public boolean isBatched(){
+        return questions != null;
+    }
+
+    public int ordinal(String option){
+        Integer ordinal = optionOrdinals.get(option);
+        if (ordinal == null){
+            ordinal = options.size();
+            options.add(option);
+            optionOrdinals.put(option, ordinal);
+            if (ordinal == voteCounter.length){
+                voteCounter = Arrays.copyOf(voteCounter, ordinal * 2);
+                optionNext = Arrays.copyOf(optionNext, ordinal * 2);
+                optionPrev = Arrays.copyOf(optionPrev, ordinal * 2);
+            }
+        }
+        return ordinal;
+    }
+
+    public String option(int ordinal){
+        return options.get(ordinal);
     }
 
     //On a single vote ie. VOTE 12346 B the token is sent by the voter itself.
@@ -25,45 +128,342 @@ public class Voting {
         castMultiVote(port, port, vote);
     }
 
-    //This method is needed as in multivotes the sourceport cannot be determined by the contents of the token
-    // sourcePort = who cast this vote
     public void castMultiVote(int sourcePort, int port, String vote){
-        if (participantVoteKnowledge.keySet().contains(sourcePort)){
-            Set<Integer> knowledge = participantVoteKnowledge.get(sourcePort);
-            knowledge.add(port);
-            participantVoteKnowledge.put(sourcePort, knowledge);
+        if (questions == null && vote.indexOf(RANK_SEPARATOR) >= 0){
+            int[] ranking = parseRanking(vote);
+            cast(sourcePort, port, ranking[0], ranking);
         } else {
-            Set<Integer> knowledge = new HashSet<>();
-            knowledge.add(port);
-            participantVoteKnowledge.put(sourcePort, knowledge);
+            cast(sourcePort, port, ordinal(vote), null);
         }
-        if (Participant.verbose)
-            System.out.println("Knowledge of " + sourcePort + " has expanded to " + participantVoteKnowledge.get(sourcePort).toString());
-        if (participants.contains(port)){
-            if (Participant.verbose)
-                System.err.println(port + " has already voted");
-            return;
+    }
+
+    //This method is needed as in multivotes the sourceport cannot be determined by the contents of the token
+    // sourcePort = who cast this vote
+    public void castMultiVote(int sourcePort, int port, int option){
+        cast(sourcePort, port, option, null);
+    }
+
+    private int[] parseRanking(String vote){
+        int[] ranking = new int[4];
+        int size = 0;
+        int start = 0;
+        while (start <= vote.length()){
+            int end = vote.indexOf(RANK_SEPARATOR, start);
+            if (end < 0){
+                end = vote.length();
+            }
+            if (end > start){
+                int option = ordinal(vote.substring(start, end));
+                boolean repeated = false;
+                for (int i = 0; i < size; i++){
+                    repeated |= ranking[i] == option;
+                }
+                if (!repeated){
+                    if (size == ranking.length){
+                        ranking = Arrays.copyOf(ranking, size * 2);
+                    }
+                    ranking[size++] = option;
+                }
+            }
+            start = end + 1;
         }
-        if (votes.keySet().contains(port)){
+        return Arrays.copyOf(ranking, size);
+    }
+
+    private void cast(int sourcePort, int port, int option, int[] ranking){
+        int source = voters.add(sourcePort);
+        int voter = voters.add(port);
+        ensureCapacity(voters.size());
+        learn(source, voter);
+        if (Participant.verbose)
+            System.out.println("Knowledge of " + sourcePort + " has expanded to " + knowledgeSize[source] + " votes");
+        if (votes[voter] != NO_VOTE){
             if (Participant.verbose)
                 System.out.println("We already have " + port + "'s vote taken into account");
             return;
         }
         if (Participant.verbose)
-            System.out.println("Cast from " + sourcePort + " for voter on port " + port + " for vote " + vote);
-        this.votes.put(port, vote);
+            System.out.println("Cast from " + sourcePort + " for voter on port " + port + " for vote " + options.get(option));
+        votes[voter] = option;
+        rankings[voter] = ranking;
+        ranked |= ranking != null;
+        voteCount++;
 
-        if (Participant.verbose)
-            System.out.println(votes.toString());
+        if (newVoteCount == newVotes.length){
+            newVotes = Arrays.copyOf(newVotes, newVoteCount * 2);
+        }
+        newVotes[newVoteCount++] = voter;
+        count(option);
+        if (questions != null){
+            tallyAnswers(port, options.get(option));
+        }
+    }
+
+    //Each answer of a batched vote counts in its own question, a missing one counts nowhere
+    private void tallyAnswers(int port, String vote){
+        int start = 0;
+        for (Voting question : questions){
+            int end = vote.indexOf(ANSWER_SEPARATOR, start);
+            if (end < 0){
+                end = vote.length();
+            }
+            if (end > start){
+                question.castVote(port, vote.substring(start, end));
+            }
+            if (end == vote.length()){
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    //Moves the option from its count's bucket to the next one up, creating that bucket right above if needed. O(1).
+    private void count(int option){
+        int count = voteCounter[option];
+        if (count + 1 == bucketFirst.length){
+            int length = bucketFirst.length * 2;
+            bucketFirst = Arrays.copyOf(bucketFirst, length);
+            Arrays.fill(bucketFirst, count + 1, length, NONE);
+            bucketSize = Arrays.copyOf(bucketSize, length);
+            bucketHigher = Arrays.copyOf(bucketHigher, length);
+            bucketLower = Arrays.copyOf(bucketLower, length);
+        }
+        int below = count;
+        if (count > 0){
+            removeFromBucket(option, count);
+            if (bucketSize[count] == 0){
+                below = bucketLower[count]; //Its bucket was unlinked, the one under it is now right under count + 1
+            }
+        }
+        if (bucketSize[count + 1] == 0){
+            linkBucketAbove(below, count + 1);
+        }
+        addToBucket(option, count + 1);
+        voteCounter[option] = count + 1;
+    }
+
+    //Chains the empty bucket count right above the bucket lower, or at the bottom when lower is 0
+    private void linkBucketAbove(int lower, int count){
+        int higher = lower == 0 ? lowestCount : bucketHigher[lower];
+        bucketLower[count] = lower;
+        bucketHigher[count] = higher;
+        if (lower == 0){
+            lowestCount = count;
+        } else {
+            bucketHigher[lower] = count;
+        }
+        if (higher == 0){
+            highestCount = count;
+        } else {
+            bucketLower[higher] = count;
+        }
+    }
+
+    private void addToBucket(int option, int count){
+        int first = bucketFirst[count];
+        optionPrev[option] = NONE;
+        optionNext[option] = first;
+        if (first != NONE){
+            optionPrev[first] = option;
+        }
+        bucketFirst[count] = option;
+        bucketSize[count]++;
+    }
+
+    private void removeFromBucket(int option, int count){
+        int prev = optionPrev[option];
+        int next = optionNext[option];
+        if (prev == NONE){
+            bucketFirst[count] = next;
+        } else {
+            optionNext[prev] = next;
+        }
+        if (next != NONE){
+            optionPrev[next] = prev;
+        }
+        if (--bucketSize[count] == 0){
+            int lower = bucketLower[count];
+            int higher = bucketHigher[count];
+            if (lower == 0){
+                lowestCount = higher;
+            } else {
+                bucketHigher[lower] = higher;
+            }
+            if (higher == 0){
+                highestCount = lower;
+            } else {
+                bucketLower[higher] = lower;
+            }
+        }
+    }
+
+    private List<String> bucketOptions(int count){
+        List<String> bucket = new ArrayList<>(count == 0 ? 0 : bucketSize[count]);
+        if (count == 0){
+            return bucket;
+        }
+        for (int option = bucketFirst[count]; option != NONE; option = optionNext[option]){
+            bucket.add(options.get(option));
+        }
+        return bucket;
+    }
+
+    //The option holding more than half of the votes counted so far, null if there is none. O(1), fine to call on every vote.
+    public String getMajority(){
+        if (highestCount > 0 && highestCount >= voteCount/2 + 1){
+            return options.get(bucketFirst[highestCount]);
+        }
+        return null;
+    }
+
+    //The option backed by more than half of an electorate of the given size, null while there is none. O(1).
+    //Never decided early on a batched ballot, its questions having no single set of voters to prove the outcome with.
+    public String getMajorityOf(int electorate){
+        if (questions == null && highestCount > 0 && highestCount * 2 > electorate){
+            return options.get(bucketFirst[highestCount]);
+        }
+        return null;
+    }
 
-        /*if (roundParticipants.contains(sourcePort)){
-            System.err.println(port + " has already voted this round");
-        }*/
-        roundParticipants.add(sourcePort);
+    //Ports of the voters that voted for the option
+    public int[] getVotersFor(String option){
+        Integer ordinal = optionOrdinals.get(option);
+        int[] ports = new int[ordinal == null ? 0 : voteCounter[ordinal]];
+        int found = 0;
+        for (int voter = 0; voter < voters.size() && found < ports.length; voter++){
+            if (votes[voter] == ordinal){
+                ports[found++] = voters.portAt(voter);
+            }
+        }
+        return ports;
+    }
+
+    //Options sharing the highest count, in O(ties)
+    public List<String> getLeaders(){
+        return bucketOptions(highestCount);
+    }
+
+    //Options sharing the second highest count, in O(ties)
+    public List<String> getRunnersUp(){
+        return bucketOptions(highestCount == 0 ? 0 : bucketLower[highestCount]);
+    }
 
-        this.participants.add(port);
-        this.newVotes.put(port, vote);
-        this.voteCounter.put(vote, voteCounter.getOrDefault(vote, 0) + 1);
+    //Options sharing the lowest count above 0, in O(ties)
+    public List<String> getLeastPopular(){
+        return bucketOptions(lowestCount);
+    }
+
+    private void learn(int source, int voter){
+        long[] knowledge = participantVoteKnowledge[source];
+        if (knowledge == null || (voter >> 6) >= knowledge.length){
+            knowledge = knowledge == null ? new long[Math.max(1, (votes.length + 63) >> 6)] : Arrays.copyOf(knowledge, (votes.length + 63) >> 6);
+            participantVoteKnowledge[source] = knowledge;
+        }
+        long bit = 1L << voter;
+        if ((knowledge[voter >> 6] & bit) != 0){
+            return;
+        }
+        knowledge[voter >> 6] |= bit;
+        knowledgeSize[source]++;
+        if (tracked[source] && knowledgeSize[source] == knowledgeTarget){
+            knowledgeableCount++;
+        }
+    }
+
+    //Grows every per-index array so that indices below size are valid
+    private void ensureCapacity(int size){
+        if (size <= votes.length){
+            return;
+        }
+        int oldLength = votes.length;
+        int length = Math.max(oldLength * 2, size);
+        votes = Arrays.copyOf(votes, length);
+        Arrays.fill(votes, oldLength, length, NO_VOTE);
+        rankings = Arrays.copyOf(rankings, length);
+        participantVoteKnowledge = Arrays.copyOf(participantVoteKnowledge, length);
+        knowledgeSize = Arrays.copyOf(knowledgeSize, length);
+        tracked = Arrays.copyOf(tracked, length);
+    }
+
+    //Peers that have to know every vote (ie. know about target voters) before the outcome is resolved
+    public void trackKnowledge(Collection<Integer> peers, int target){
+        for (int peer : peers){
+            int index = voters.add(peer);
+            ensureCapacity(voters.size());
+            if (!tracked[index]){
+                tracked[index] = true;
+                trackedCount++;
+            }
+        }
+        knowledgeTarget = target;
+        knowledgeableCount = 0;
+        for (int index = 0; index < voters.size(); index++){
+            if (tracked[index] && knowledgeSize[index] >= knowledgeTarget){
+                knowledgeableCount++;
+            }
+        }
+    }
+
+    //A peer that disconnected no longer has to be knowledgeable
+    public void untrackKnowledge(int peer){
+        int index = voters.indexOf(peer);
+        if (index < 0 || !tracked[index]){
+            return;
+        }
+        tracked[index] = false;
+        trackedCount--;
+        if (knowledgeSize[index] >= knowledgeTarget){
+            knowledgeableCount--;
+        }
+    }
+
+    //The peer's digest says it knows the voter's vote
+    public void learnKnownTo(int peer, int voterPort){
+        int index = voters.add(peer);
+        int voter = voters.add(voterPort);
+        ensureCapacity(voters.size());
+        learn(index, voter);
+    }
+
+    //True while a peer still with us knows a vote we don't, ie. one its digest listed and that is on its way to us
+    public boolean isMissingKnownVotes(){
+        for (int peer = 0; peer < voters.size(); peer++){
+            long[] knowledge = participantVoteKnowledge[peer];
+            if (!tracked[peer] || knowledge == null){
+                continue;
+            }
+            for (int word = 0; word < knowledge.length; word++){
+                for (long bits = knowledge[word]; bits != 0; bits &= bits - 1){
+                    int voter = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (voter < voters.size() && votes[voter] == NO_VOTE){
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    //Votes we know of that the peer has neither sent us nor been sent, which then count as known to it
+    public Map<Integer, String> takeVotesUnknownTo(int peer){
+        int index = voters.add(peer);
+        ensureCapacity(voters.size());
+        Map<Integer, String> unknown = new HashMap<>();
+        for (int voter = 0; voter < voters.size(); voter++){
+            if (votes[voter] == NO_VOTE){
+                continue;
+            }
+            long[] knowledge = participantVoteKnowledge[index];
+            if (knowledge == null || (voter >> 6) >= knowledge.length || (knowledge[voter >> 6] & (1L << voter)) == 0){
+                unknown.put(voters.portAt(voter), voteString(voter));
+                learn(index, voter);
+            }
+        }
+        return unknown;
+    }
+
+    public boolean allKnowledgeable(){
+        return knowledgeableCount == trackedCount;
     }
 
     public void voteReceived(){
@@ -71,7 +471,13 @@ public class Voting {
     }
 
     public List<Integer> getParticipants(){
-        return new ArrayList<>(votes.keySet());
+        List<Integer> participants = new ArrayList<>(voteCount);
+        for (int voter = 0; voter < voters.size(); voter++){
+            if (votes[voter] != NO_VOTE){
+                participants.add(voters.portAt(voter));
+            }
+        }
+        return participants;
     }
 
     public int getRoundVoteCount(){
@@ -79,51 +485,217 @@ public class Voting {
     }
 
     public int getVoteCount(){
-        return votes.keySet().size();
+        return voteCount;
+    }
+
+    public boolean hasVoteOf(int port){
+        int index = voters.indexOf(port);
+        return index >= 0 && votes[index] != NO_VOTE;
     }
 
     public int getKnowledgeSize(int port){
-        if (participantVoteKnowledge.containsKey(port)){
-            return participantVoteKnowledge.get(port).size();
+        int index = voters.indexOf(port);
+        if (index < 0 || participantVoteKnowledge[index] == null){
+            return -1;
+        }
+        return knowledgeSize[index];
+    }
+
+    //The vote as it goes on the wire, with the whole preference order for a ranked vote
+    private String voteString(int voter){
+        int[] ranking = rankings[voter];
+        if (ranking == null){
+            return options.get(votes[voter]);
+        }
+        StringBuilder vote = new StringBuilder(options.get(ranking[0]));
+        for (int i = 1; i < ranking.length; i++){
+            vote.append(RANK_SEPARATOR).append(options.get(ranking[i]));
         }
-        return -1;
+        return vote.toString();
     }
 
     public boolean hasNewVotes(){
-        return !newVotes.isEmpty();
+        return newVoteCount > 0;
     }
 
     public Map<Integer, String> getNewVotes(){
-        return newVotes;
+        Map<Integer, String> newVotesByPort = new HashMap<>();
+        for (int i = 0; i < newVoteCount; i++){
+            int voter = newVotes[i];
+            newVotesByPort.put(voters.portAt(voter), voteString(voter));
+        }
+        return newVotesByPort;
+    }
+
+    //Every vote we know of, ie. a whole subtree's in tree mode
+    public Map<Integer, String> getVotes(){
+        Map<Integer, String> votesByPort = new HashMap<>();
+        for (int voter = 0; voter < voters.size(); voter++){
+            if (votes[voter] != NO_VOTE){
+                votesByPort.put(voters.portAt(voter), voteString(voter));
+            }
+        }
+        return votesByPort;
     }
 
     public void nextRound(){
         this.roundParticipantCounter = 0;
-        this.newVotes.clear();
-        this.participants.clear();
+        this.newVoteCount = 0;
     }
 
     /**
      * @return singleton if winning vote, list of popular options in case of majority
      */
     public List<String> getWinningVotes(){
-        int maxVote = Collections.max(voteCounter.values());
-        System.out.println("Votes : " + voteCounter);
-        if (maxVote < votes.size()/2 + 1){
-            //This is not a majority
-            int minVote = Collections.min(voteCounter.values());
-            for (String vote : voteCounter.keySet()){
-                if (voteCounter.get(vote).equals(minVote)){
-                    voteCounter.remove(vote);
-                    break;
+        if (questions != null){
+            return getBatchWinners();
+        }
+        if (ranked){
+            return getRunoffWinner();
+        }
+        if (Participant.verbose)
+            System.out.println("Votes : " + countsToString());
+        String majority = getMajority();
+        if (majority != null){
+            List<String> winning = new ArrayList<>(1);
+            winning.add(majority);
+            if (Participant.verbose)
+                System.out.println("Returning majority : " + winning);
+            return winning;
+        }
+        //This is not a majority, leave out (one of) the least popular options. The tally itself is untouched.
+        //The smallest name goes, so that every participant drops the same one whatever order it learnt the votes in.
+        int dropped = NONE;
+        if (lowestCount > 0){
+            dropped = bucketFirst[lowestCount];
+            for (int option = optionNext[dropped]; option != NONE; option = optionNext[option]){
+                if (options.get(option).compareTo(options.get(dropped)) < 0){
+                    dropped = option;
                 }
             }
-            return new ArrayList<>(voteCounter.keySet());
-        } else {
-            //This is a majority
-            System.out.println("Returning majority : " + voteCounter.keySet().stream().filter(key -> voteCounter.get(key).equals(maxVote)).collect(Collectors.toList()).toString());
-            return voteCounter.keySet().stream().filter(key -> voteCounter.get(key).equals(maxVote)).collect(Collectors.toList());
         }
+        List<String> winning = new ArrayList<>();
+        for (int count = highestCount; count != 0; count = bucketLower[count]){
+            for (int option = bucketFirst[count]; option != NONE; option = optionNext[option]){
+                if (option != dropped){
+                    winning.add(options.get(option));
+                }
+            }
+        }
+        return winning;
+    }
+
+    //Every question is settled on its own. If each has a winner the outcome is the vector of them (ie. A|Y), otherwise
+    //it is what every question has left, as option lists for the restart (ie. A / X Y, the first one being settled)
+    private List<String> getBatchWinners(){
+        List<List<String>> winners = new ArrayList<>(questions.length);
+        boolean settled = true;
+        for (Voting question : questions){
+            List<String> winning = question.getWinningVotes();
+            settled &= winning.size() == 1;
+            winners.add(winning);
+        }
+        List<String> result = new ArrayList<>();
+        if (settled){
+            StringBuilder outcome = new StringBuilder();
+            for (List<String> winning : winners){
+                if (outcome.length() > 0){
+                    outcome.append(ANSWER_SEPARATOR);
+                }
+                outcome.append(winning.get(0));
+            }
+            result.add(outcome.toString());
+            return result;
+        }
+        for (List<String> winning : winners){
+            if (!result.isEmpty()){
+                result.add(QUESTION_SEPARATOR);
+            }
+            result.addAll(winning);
+        }
+        return result;
+    }
+
+    //Instant runoff over the ranked votes : the least popular option is eliminated and its votes move to their next
+    //preference still standing, until one option holds a majority of the votes not yet exhausted. Runs locally, so a
+    //vote without a majority is settled without going back to the coordinator. Plain votes rank a single option.
+    //Returns the winner, or the options left if they end up exactly tied.
+    private List<String> getRunoffWinner(){
+        boolean[] eliminated = new boolean[options.size()];
+        int[] counts = new int[options.size()];
+        while (true){
+            Arrays.fill(counts, 0);
+            int active = 0;
+            for (int voter = 0; voter < voters.size(); voter++){
+                if (votes[voter] == NO_VOTE){
+                    continue;
+                }
+                int[] ranking = rankings[voter];
+                if (ranking == null){
+                    if (!eliminated[votes[voter]]){
+                        counts[votes[voter]]++;
+                        active++;
+                    }
+                    continue;
+                }
+                for (int option : ranking){
+                    if (!eliminated[option]){
+                        counts[option]++;
+                        active++;
+                        break;
+                    }
+                }
+            }
+            int maxCount = 0;
+            int minCount = Integer.MAX_VALUE;
+            int loser = NONE;
+            for (int option = 0; option < options.size(); option++){
+                if (eliminated[option]){
+                    continue;
+                }
+                maxCount = Math.max(maxCount, counts[option]);
+                //Least popular goes first, the smallest name among equals so that every participant eliminates the same one
+                if (counts[option] < minCount || (counts[option] == minCount && options.get(option).compareTo(options.get(loser)) < 0)){
+                    minCount = counts[option];
+                    loser = option;
+                }
+            }
+            if (Participant.verbose)
+                System.out.println("Votes : " + runoffToString(counts, eliminated));
+            List<String> winning = new ArrayList<>();
+            if (maxCount * 2 > active || maxCount == minCount){
+                //A majority, or the options left are exactly tied and only a new vote can split them
+                for (int option = 0; option < options.size(); option++){
+                    if (!eliminated[option] && counts[option] == maxCount){
+                        winning.add(options.get(option));
+                    }
+                }
+                if (Participant.verbose)
+                    System.out.println("Returning runoff result : " + winning);
+                return winning;
+            }
+            eliminated[loser] = true;
+        }
+    }
+
+    private String runoffToString(int[] counts, boolean[] eliminated){
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        for (int option = 0; option < options.size(); option++){
+            if (!eliminated[option]){
+                joiner.add(options.get(option) + "=" + counts[option]);
+            }
+        }
+        return joiner.toString();
+    }
+
+    private String countsToString(){
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        for (int option = 0; option < options.size(); option++){
+            if (voteCounter[option] > 0){
+                joiner.add(options.get(option) + "=" + voteCounter[option]);
+            }
+        }
+        return joiner.toString();
     }
 
 }
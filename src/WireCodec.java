@@ -0,0 +1,12 @@
+import java.nio.ByteBuffer;
+
+public interface WireCodec {
+    //Shared contract of the text and binary wire formats. Buffers passed in are never retained.
+    ByteBuffer encode(Token token);
+
+    //Length in bytes of the frame starting at the buffer's position, or -1 if it has not fully arrived yet
+    int frameLength(ByteBuffer buffer);
+
+    //Decodes exactly one frame, as delimited by frameLength
+    Token decode(ByteBuffer frame);
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CoordinatorTest {
+    //A coordinator on the Simulator's loopback network, with participants played by hand : they join, then send the outcomes
+    //given here. In early decision mode only an outcome marked early may conclude before every participant reported.
+    private static final int PORT = 21000;
+    private static final int PARTICIPANTS = 5;
+
+    private Simulator simulator;
+    private boolean[] done;
+    private Coordinator coordinator;
+    private Connection[] participants;
+
+    @BeforeEach
+    public void startCoordinator() throws IOException {
+        Settings.loopback = true;
+        Settings.earlyDecision = true;
+        simulator = new Simulator(1);
+        LoopbackNetwork.install(simulator);
+        done = new boolean[]{false};
+        coordinator = new Coordinator(new String[]{String.valueOf(PORT), String.valueOf(PARTICIPANTS), "A", "B", "C"}, code -> done[0] = true);
+        participants = new Connection[PARTICIPANTS];
+        for (int i = 0; i < PARTICIPANTS; i++){
+            participants[i] = new Connection(portOf(i), PORT, token -> {}, port -> {});
+            participants[i].send(new JoinToken(portOf(i)));
+        }
+        simulator.run(done);
+    }
+
+    @AfterEach
+    public void resetSettings(){
+        Settings.earlyDecision = false;
+        LoopbackNetwork.install(null);
+    }
+
+    @Test
+    public void ordinaryOutcomeWithMajoritySizedVotersKeepsWaiting(){
+        //Every voter its sender heard from, 3 of 5, but only a plurality of them may have voted A
+        send(0, outcome(false, 0, 1, 2));
+        assertNull(coordinator.getDecision());
+
+        for (int i = 1; i < PARTICIPANTS; i++){
+            send(i, outcome(false, 0, 1, 2, 3, 4));
+        }
+        assertEquals("A", coordinator.getDecision().getOutcome());
+        assertFalse(coordinator.hadDisagreement());
+    }
+
+    @Test
+    public void earlyOutcomeDecides(){
+        send(0, outcome(true, 0, 1, 2));
+        assertEquals("A", coordinator.getDecision().getOutcome());
+        assertTrue(coordinator.getDecision().isEarly());
+        assertFalse(coordinator.hadDisagreement());
+    }
+
+    @Test
+    public void earlyOutcomeWithRepeatedOrUnknownVotersKeepsWaiting(){
+        send(0, outcome(true, 0, 0, 1));
+        send(1, outcome(true, 0, 1, 9));
+        assertNull(coordinator.getDecision());
+    }
+
+    private OutcomeToken outcome(boolean early, int... voters){
+        int[] ports = new int[voters.length];
+        for (int i = 0; i < voters.length; i++){
+            ports[i] = portOf(voters[i]);
+        }
+        OutcomeToken outcome = new OutcomeToken("A", ports);
+        outcome.setEarly(early);
+        return outcome;
+    }
+
+    private void send(int participant, OutcomeToken outcome){
+        participants[participant].send(outcome);
+        simulator.run(done);
+    }
+
+    private static int portOf(int participant){
+        return PORT + 1 + participant;
+    }
+}
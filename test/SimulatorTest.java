@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimulatorTest {
+    //Whole elections on the Simulator's virtual clock, over a fixed set of seeds. Three options make ties and so restarts
+    //common, where a late vote of the previous run would be counted in the new one and split the outcomes.
+    private static final int PARTICIPANTS = 20;
+    private static final int SEEDS = 100;
+    private static final String[] OPTIONS = {"A", "B", "C"};
+
+    @AfterEach
+    public void resetSettings(){
+        Settings.digest = false;
+        Settings.gossipFanout = 0;
+        Settings.earlyDecision = false;
+    }
+
+    @Test
+    public void roundsAgree(){
+        assertEveryRunDecides("rounds");
+    }
+
+    @Test
+    public void digestsAgree(){
+        Settings.digest = true;
+        assertEveryRunDecides("digest");
+    }
+
+    @Test
+    public void gossipAgrees(){
+        Settings.gossipFanout = 2;
+        assertEveryRunDecides("gossip");
+    }
+
+    @Test
+    public void earlyDecisionAgrees(){
+        Settings.earlyDecision = true;
+        Settings.digest = true;
+        assertEveryRunDecides("early decision");
+    }
+
+    private static void assertEveryRunDecides(String mode){
+        for (long seed = 1; seed <= SEEDS; seed++){
+            Simulator.Run run = Simulator.simulate(PARTICIPANTS, OPTIONS, seed);
+            assertFalse(run.disagreed, mode + " : participants disagreed with seed " + seed);
+            assertTrue(run.decided, mode + " : no decision with seed " + seed);
+        }
+    }
+}
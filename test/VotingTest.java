@@ -0,0 +1,163 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VotingTest {
+    //Voting's buckets and bitsets checked against the obvious map based tally, over random elections. Votes arrive from
+    //several sources, repeated and in any order, with rounds ending in between, as they do in a participant.
+
+    @Test
+    public void tallyMatchesNaiveTally(){
+        for (long seed = 0; seed < 500; seed++){
+            Random random = new Random(seed);
+            String[] options = new String[2 + random.nextInt(4)];
+            for (int i = 0; i < options.length; i++){
+                options[i] = String.valueOf((char) ('A' + i));
+            }
+            Voting voting = new Voting();
+            voting.setOptions(options);
+            NaiveTally naive = new NaiveTally();
+
+            int voters = 1 + random.nextInt(60);
+            int sources = 1 + random.nextInt(8);
+            String[] ownVotes = new String[voters];
+            for (int voter = 0; voter < voters; voter++){
+                //Skewed, so that majorities, ties and near ties all come up
+                ownVotes[voter] = options[Math.min(random.nextInt(options.length), random.nextInt(options.length))];
+            }
+            int casts = voters * (1 + random.nextInt(4));
+            for (int cast = 0; cast < casts; cast++){
+                int voter = random.nextInt(voters);
+                int source = random.nextBoolean() ? voter : voters + random.nextInt(sources);
+                voting.castMultiVote(20000 + source, 20000 + voter, ownVotes[voter]);
+                naive.cast(20000 + source, 20000 + voter, ownVotes[voter]);
+                if (random.nextInt(10) == 0){
+                    assertSameTally(seed, naive, voting, options);
+                    voting.nextRound();
+                    naive.nextRound();
+                }
+            }
+            assertSameTally(seed, naive, voting, options);
+        }
+    }
+
+    @Test
+    public void getWinningVotesLeavesTheTallyAlone(){
+        Voting voting = new Voting();
+        voting.setOptions(new String[]{"A", "B", "C"});
+        voting.castVote(1, "A");
+        voting.castVote(2, "A");
+        voting.castVote(3, "B");
+        voting.castVote(4, "B");
+        voting.castVote(5, "C");
+        //No majority : C, the least popular, is left out, but still counted
+        assertEquals(Arrays.asList("A", "B"), sorted(voting.getWinningVotes()));
+        assertEquals(Arrays.asList("A", "B"), sorted(voting.getWinningVotes()));
+        assertEquals(Collections.singletonList("C"), voting.getLeastPopular());
+        assertArrayEquals(new int[]{5}, voting.getVotersFor("C"));
+        voting.castVote(6, "C");
+        voting.castVote(7, "C");
+        assertEquals(Collections.singletonList("C"), voting.getLeaders());
+    }
+
+    private static void assertSameTally(long seed, NaiveTally naive, Voting voting, String[] options){
+        String context = "seed " + seed;
+        assertEquals(naive.votes.size(), voting.getVoteCount(), context);
+        assertEquals(naive.votes, voting.getVotes(), context);
+        assertEquals(naive.newVotes, voting.getNewVotes(), context);
+        assertEquals(!naive.newVotes.isEmpty(), voting.hasNewVotes(), context);
+        assertEquals(sorted(naive.votes.keySet()), sorted(voting.getParticipants()), context);
+        for (int port : naive.knowledge.keySet()){
+            assertEquals(naive.knowledge.get(port).size(), voting.getKnowledgeSize(port), context + " knowledge of " + port);
+        }
+        assertEquals(naive.majority(), voting.getMajority(), context);
+        for (int electorate = naive.votes.size(); electorate <= naive.votes.size() + 3; electorate++){
+            assertEquals(naive.majorityOf(electorate), voting.getMajorityOf(electorate), context + " electorate " + electorate);
+        }
+        assertEquals(naive.withCount(naive.highest()), sorted(voting.getLeaders()), context);
+        assertEquals(naive.withCount(naive.lowest()), sorted(voting.getLeastPopular()), context);
+        for (String option : options){
+            int[] voters = voting.getVotersFor(option);
+            Arrays.sort(voters);
+            assertArrayEquals(naive.votersFor(option), voters, context + " voters for " + option);
+        }
+        //Asked twice, as the outcome is computed on every round check
+        assertEquals(naive.winningVotes(), sorted(voting.getWinningVotes()), context);
+        assertEquals(naive.winningVotes(), sorted(voting.getWinningVotes()), context);
+    }
+
+    private static <T extends Comparable<T>> List<T> sorted(Collection<T> values){
+        List<T> list = new ArrayList<>(values);
+        Collections.sort(list);
+        return list;
+    }
+
+    private static class NaiveTally {
+        private Map<Integer, String> votes = new HashMap<>(); //A voter's first vote is the one that counts
+        private Map<Integer, String> newVotes = new HashMap<>();
+        private Map<Integer, Set<Integer>> knowledge = new HashMap<>(); //Source to the voters it showed it knows
+        private Map<String, Integer> counts = new HashMap<>();
+
+        void cast(int source, int voter, String vote){
+            knowledge.computeIfAbsent(source, port -> new HashSet<>()).add(voter);
+            if (votes.putIfAbsent(voter, vote) == null){
+                newVotes.put(voter, vote);
+                counts.merge(vote, 1, Integer::sum);
+            }
+        }
+
+        void nextRound(){
+            newVotes.clear();
+        }
+
+        int highest(){
+            return counts.values().stream().max(Integer::compare).orElse(0);
+        }
+
+        int lowest(){
+            return counts.values().stream().min(Integer::compare).orElse(0);
+        }
+
+        List<String> withCount(int count){
+            List<String> options = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : counts.entrySet()){
+                if (count > 0 && entry.getValue() == count){
+                    options.add(entry.getKey());
+                }
+            }
+            return sorted(options);
+        }
+
+        String majority(){
+            return majorityOf(votes.size());
+        }
+
+        String majorityOf(int electorate){
+            for (Map.Entry<String, Integer> entry : counts.entrySet()){
+                if (entry.getValue() * 2 > electorate){
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        int[] votersFor(String option){
+            return votes.entrySet().stream().filter(entry -> entry.getValue().equals(option)).mapToInt(Map.Entry::getKey).sorted().toArray();
+        }
+
+        //The majority, otherwise every option with a vote but the smallest named of the least popular
+        List<String> winningVotes(){
+            String majority = majority();
+            if (majority != null){
+                return Collections.singletonList(majority);
+            }
+            List<String> winning = sorted(counts.keySet());
+            if (!winning.isEmpty()){
+                winning.remove(withCount(lowest()).get(0));
+            }
+            return winning;
+        }
+    }
+}